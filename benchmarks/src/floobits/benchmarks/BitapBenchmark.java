@@ -0,0 +1,66 @@
+package floobits.benchmarks;
+
+import floobits.common.dmp.Bitap;
+import floobits.common.dmp.FlooDmp;
+import floobits.tests.IntBitap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fuzzy matching a patch's context in a document that has drifted from it: the long mask Bitap against the int mask,
+ * boxed alphabet version it replaced, and the multi-word variant for contexts past 64 chars.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BitapBenchmark {
+    @Param({"10000", "200000"})
+    public int size;
+
+    private final FlooDmp dmp = new FlooDmp();
+    private String text;
+    private String shortPattern;
+    private String longPattern;
+    private int loc;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String original = Corpus.text(random, size);
+        loc = size / 2;
+        shortPattern = original.substring(loc, loc + 32);
+        longPattern = original.substring(loc, loc + 200);
+        text = Corpus.scatter(random, original, size / 500);
+    }
+
+    @Benchmark
+    public int longMasks() {
+        return Bitap.match(text, shortPattern, loc, dmp.Match_Threshold, dmp.Match_Distance);
+    }
+
+    @Benchmark
+    public int intMasks() {
+        return IntBitap.match(text, shortPattern, loc, dmp.Match_Threshold, dmp.Match_Distance);
+    }
+
+    @Benchmark
+    public int multiWord() {
+        return Bitap.match(text, longPattern, loc, dmp.Match_Threshold, dmp.Match_Distance);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(BitapBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
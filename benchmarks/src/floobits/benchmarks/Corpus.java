@@ -0,0 +1,273 @@
+package floobits.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Real source files and edit traces replayed over them. The files come from the directory in the FLOOBITS_CORPUS
+ * environment variable, which forked benchmark JVMs inherit, or else from this project's own src directory. If
+ * neither is there, generated source-like lines stand in.
+ */
+public class Corpus {
+    public static final String ENV = "FLOOBITS_CORPUS";
+    private static final HashSet<String> EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "java", "py", "js", "go", "c", "h", "cpp", "rb", "xml", "md", "txt", "json", "html", "css"));
+    // A file bigger than this is probably generated.
+    private static final int MAX_FILE_SIZE = 512 * 1024;
+    // Only for the generated fallback text.
+    private static final String[] WORDS = {
+            "public", "private", "static", "final", "int", "String", "return", "if", "else", "for", "while", "new",
+            "buf", "patch", "context", "null", "true", "false", "=", "==", "+", "(", ")", "{", "}", ";", "md5", "text"
+    };
+    private static List<String> files;
+
+    /**
+     * One keystroke, paste or delete: removed is replaced with inserted at offset.
+     */
+    public static class Edit {
+        public final int offset;
+        public final String removed;
+        public final String inserted;
+
+        public Edit(int offset, String removed, String inserted) {
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+    }
+
+    private static File root() {
+        String dir = System.getenv(ENV);
+        if (dir != null) {
+            return new File(dir);
+        }
+        // IntelliJ runs from either the project or the module directory.
+        for (String candidate : new String[]{"src", "../src"}) {
+            File file = new File(candidate);
+            if (file.isDirectory()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Contents of every text file under the corpus root, sorted by path so runs see the same order.
+     */
+    public static synchronized List<String> files() {
+        if (files != null) {
+            return files;
+        }
+        List<File> found = new ArrayList<File>();
+        File root = root();
+        if (root != null) {
+            collect(root, found);
+        }
+        Collections.sort(found);
+        files = new ArrayList<String>();
+        for (File file : found) {
+            try {
+                files.add(read(file));
+            } catch (IOException e) {
+                // Skip it, the corpus is only a source of realistic text.
+            }
+        }
+        return files;
+    }
+
+    private static void collect(File dir, List<File> found) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String name = child.getName();
+            if (name.startsWith(".")) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                collect(child, found);
+                continue;
+            }
+            int dot = name.lastIndexOf('.');
+            if (dot > 0 && EXTENSIONS.contains(name.substring(dot + 1)) && child.length() <= MAX_FILE_SIZE) {
+                found.add(child);
+            }
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            // Buffers are stored with \n only.
+            return out.toString("UTF-8").replace("\r\n", "\n");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * size chars of corpus files, back to back from a random one, like a big source file.
+     */
+    public static String text(Random random, int size) {
+        List<String> files = files();
+        if (files.isEmpty()) {
+            return generated(random, size);
+        }
+        StringBuilder sb = new StringBuilder(size + MAX_FILE_SIZE);
+        int file = random.nextInt(files.size());
+        while (sb.length() < size) {
+            sb.append(files.get(file));
+            file = (file + 1) % files.size();
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    /**
+     * An editing session of edits steps over text: typing words one char at a time, backspacing, pasting and deleting
+     * lines, and moving the cursor, mostly to nearby lines. Words and pasted lines come from the text itself.
+     * @return the edits in the order they're made, each against the text the previous ones left.
+     */
+    public static List<Edit> trace(Random random, String text, int edits) {
+        List<Edit> trace = new ArrayList<Edit>(edits);
+        StringBuilder sb = new StringBuilder(text);
+        int cursor = lineStart(sb, random.nextInt(sb.length() + 1));
+        String word = "";
+        int typed = 0;
+        while (trace.size() < edits) {
+            int action = random.nextInt(100);
+            Edit edit = null;
+            if (typed < word.length()) {
+                edit = new Edit(cursor, "", word.substring(typed, typed + 1));
+                typed++;
+            } else if (action < 50) {
+                word = word(random, sb) + (random.nextInt(4) == 0 ? "\n" : " ");
+                typed = 0;
+                continue;
+            } else if (action < 65) {
+                if (cursor > 0) {
+                    edit = new Edit(cursor - 1, sb.substring(cursor - 1, cursor), "");
+                }
+            } else if (action < 70) {
+                int from = lineStart(sb, random.nextInt(sb.length() + 1));
+                edit = new Edit(cursor, "", sb.substring(from, lineEnd(sb, from)));
+            } else if (action < 73) {
+                int start = lineStart(sb, cursor);
+                edit = new Edit(start, sb.substring(start, lineEnd(sb, start)), "");
+            } else if (action < 93) {
+                // Up or down a few lines, to the end of that line.
+                int lines = random.nextInt(11) - 5;
+                int pos = lineStart(sb, cursor);
+                for (; lines < 0 && pos > 0; lines++) {
+                    pos = lineStart(sb, pos - 1);
+                }
+                for (; lines > 0 && pos < sb.length(); lines--) {
+                    pos = lineEnd(sb, pos);
+                }
+                int end = lineEnd(sb, pos);
+                cursor = end > pos && sb.charAt(end - 1) == '\n' ? end - 1 : end;
+                continue;
+            } else {
+                cursor = lineStart(sb, random.nextInt(sb.length() + 1));
+                continue;
+            }
+            if (edit == null) {
+                continue;
+            }
+            sb.replace(edit.offset, edit.offset + edit.removed.length(), edit.inserted);
+            cursor = edit.offset + edit.inserted.length();
+            trace.add(edit);
+        }
+        return trace;
+    }
+
+    /**
+     * Makes hunks small edits spread evenly over text, like a collaborator typing in several places. Inserted words
+     * come from the text itself.
+     */
+    public static String scatter(Random random, String text, int hunks) {
+        StringBuilder sb = new StringBuilder(text);
+        int stride = Math.max(1, text.length() / hunks);
+        // Back to front so earlier offsets stay valid.
+        for (int hunk = hunks - 1; hunk >= 0; hunk--) {
+            int start = Math.min(sb.length(), hunk * stride + random.nextInt(Math.max(1, stride / 2)));
+            int end = Math.min(sb.length(), start + random.nextInt(8));
+            sb.replace(start, end, word(random, sb));
+        }
+        return sb.toString();
+    }
+
+    public static String replay(String text, List<Edit> trace) {
+        StringBuilder sb = new StringBuilder(text);
+        for (Edit edit : trace) {
+            sb.replace(edit.offset, edit.offset + edit.removed.length(), edit.inserted);
+        }
+        return sb.toString();
+    }
+
+    private static String generated(Random random, int size) {
+        StringBuilder sb = new StringBuilder(size + 100);
+        while (sb.length() < size) {
+            int indent = random.nextInt(4) * 4;
+            for (int i = 0; i < indent; i++) {
+                sb.append(' ');
+            }
+            int words = 1 + random.nextInt(10);
+            for (int i = 0; i < words; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            sb.append('\n');
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    private static String word(Random random, StringBuilder text) {
+        if (text.length() == 0) {
+            return "x";
+        }
+        int start = random.nextInt(text.length());
+        while (start < text.length() && !Character.isJavaIdentifierPart(text.charAt(start))) {
+            start++;
+        }
+        int end = start;
+        while (end < text.length() && end - start < 20 && Character.isJavaIdentifierPart(text.charAt(end))) {
+            end++;
+        }
+        return end > start ? text.substring(start, end) : "x";
+    }
+
+    private static int lineStart(StringBuilder text, int pos) {
+        while (pos > 0 && text.charAt(pos - 1) != '\n') {
+            pos--;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the position after pos's line, including its newline.
+     */
+    private static int lineEnd(StringBuilder text, int pos) {
+        int end = text.indexOf("\n", pos);
+        return end == -1 ? text.length() : end + 1;
+    }
+}
@@ -0,0 +1,115 @@
+package floobits.benchmarks;
+
+import floobits.common.Ignore;
+import floobits.common.interfaces.IFile;
+import floobits.tests.MockIFile;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ignore.BuildIgnore over a synthetic project: a root .gitignore, a few nested ones, and build output and dependency
+ * directories for them to prune.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class IgnoreBenchmark {
+    // Levels of directories under the root. Each has FANOUT subdirectories, so 4 is a few thousand files.
+    @Param({"2", "4"})
+    public int depth;
+
+    private static final int FANOUT = 4;
+    private static final int FILES_PER_DIRECTORY = 8;
+    private static final String[] DIRECTORIES = {
+            "src", "main", "java", "test", "util", "lib", "res", "docs", "build", "out", "node_modules", "tmp",
+            "generated", "vendor", "app", "common"
+    };
+    private static final String[] EXTENSIONS = {".java", ".java", ".java", ".js", ".py", ".xml", ".class", ".log"};
+    private static final String ROOT_IGNORE = "*.class\n*.log\n!keep.log\nbuild/\nout/\nnode_modules\n/tmp\n";
+    private static final String NESTED_IGNORE = "generated/\n*.tmp\n";
+
+    /**
+     * A MockIFile that builds its children once, so the benchmark doesn't time MockIFile.getChildren.
+     */
+    private static class Node extends MockIFile {
+        IFile[] entries = new IFile[0];
+
+        Node(String path) {
+            super(path);
+        }
+
+        @Override
+        public IFile[] getChildren() {
+            return entries;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+    }
+
+    private Node root;
+
+    @Setup
+    public void setUp() {
+        root = directory(new Random(42), "/floobits/benchmark", 0);
+        root.entries = Arrays.copyOf(root.entries, root.entries.length + 1);
+        root.entries[root.entries.length - 1] = file(root.getPath() + "/.gitignore", ROOT_IGNORE);
+    }
+
+    private Node directory(Random random, String path, int level) {
+        Node directory = new Node(path);
+        directory.isDirectory = true;
+        List<IFile> entries = new ArrayList<IFile>();
+        for (int i = 0; i < FILES_PER_DIRECTORY; i++) {
+            String name = "File" + i + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            Node file = new Node(path + "/" + name);
+            file.length = 100 + random.nextInt(20000);
+            entries.add(file);
+        }
+        if (level > 0 && random.nextInt(5) == 0) {
+            entries.add(file(path + "/.gitignore", NESTED_IGNORE));
+        }
+        if (level < depth) {
+            List<String> names = new ArrayList<String>(Arrays.asList(DIRECTORIES));
+            Collections.shuffle(names, random);
+            for (String name : names.subList(0, FANOUT)) {
+                entries.add(directory(random, path + "/" + name, level + 1));
+            }
+        }
+        directory.entries = entries.toArray(new IFile[entries.size()]);
+        return directory;
+    }
+
+    private static Node file(String path, String contents) {
+        Node file = new Node(path);
+        file.contents = contents;
+        return file;
+    }
+
+    @Benchmark
+    public Ignore buildIgnore() {
+        return Ignore.BuildIgnore(root);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(IgnoreBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
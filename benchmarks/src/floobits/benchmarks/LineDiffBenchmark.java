@@ -0,0 +1,62 @@
+package floobits.benchmarks;
+
+import floobits.common.dmp.FlooDmp;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The full diff an outbound patch falls back to: diff_main's own line mode against FlooDmp.diff_lines and
+ * FlooDmp.diff_patience, each through patch_make.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LineDiffBenchmark {
+    @Param({"200000", "2000000"})
+    public int size;
+
+    @Param({"50", "2000"})
+    public int hunks;
+
+    private final FlooDmp dmp = new FlooDmp();
+    private String before;
+    private String after;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        before = Corpus.text(random, size);
+        after = Corpus.scatter(random, before, hunks);
+    }
+
+    @Benchmark
+    public Object diffMain() {
+        return dmp.patch_make(before, after);
+    }
+
+    @Benchmark
+    public Object lineTokens() {
+        return dmp.patch_make_lines(before, after);
+    }
+
+    @Benchmark
+    public Object patience() {
+        return dmp.patch_make_patience(before, after);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(LineDiffBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
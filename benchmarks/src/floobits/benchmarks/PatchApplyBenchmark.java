@@ -0,0 +1,62 @@
+package floobits.benchmarks;
+
+import floobits.common.dmp.FlooDmp;
+import floobits.common.dmp.diff_match_patch;
+import floobits.tests.LegacyFlooDmp;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FlooDmp.patch_apply against the substring based implementation it replaced, for a patch with a number of small
+ * hunks spread over the file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PatchApplyBenchmark {
+    @Param({"10000", "200000", "2000000"})
+    public int size;
+
+    @Param({"1", "10", "50"})
+    public int hunks;
+
+    private final FlooDmp dmp = new FlooDmp();
+    private final LegacyFlooDmp legacy = new LegacyFlooDmp();
+    private String text;
+    private LinkedList<diff_match_patch.Patch> patches;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        text = Corpus.text(random, size);
+        String patched = Corpus.scatter(random, text, hunks);
+        patches = dmp.patch_make(text, patched);
+    }
+
+    @Benchmark
+    public Object stringBuilder() {
+        return dmp.patch_apply(patches, text);
+    }
+
+    @Benchmark
+    public Object substrings() {
+        return legacy.patch_apply(patches, text);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(PatchApplyBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
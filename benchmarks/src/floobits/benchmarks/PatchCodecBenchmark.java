@@ -0,0 +1,75 @@
+package floobits.benchmarks;
+
+import floobits.common.dmp.FlooDmp;
+import floobits.common.dmp.diff_match_patch;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FlooDmp.patch_toText and patch_fromText against the URLEncoder and regex based ones in diff_match_patch. Run with
+ * -prof gc to compare allocation as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PatchCodecBenchmark {
+    @Param({"10000", "200000"})
+    public int size;
+
+    @Param({"1", "10", "50"})
+    public int hunks;
+
+    private final FlooDmp dmp = new FlooDmp();
+    private final diff_match_patch reference = new diff_match_patch();
+    private LinkedList<diff_match_patch.Patch> patches;
+    private String text;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String before = Corpus.text(random, size);
+        patches = dmp.patch_make(before, Corpus.scatter(random, before, hunks));
+        text = reference.patch_toText(patches);
+        if (!text.equals(dmp.patch_toText(patches))
+                || !text.equals(reference.patch_toText(dmp.patch_fromText(text)))) {
+            throw new IllegalStateException("FlooDmp and diff_match_patch disagree on the patch text");
+        }
+    }
+
+    @Benchmark
+    public String toText() {
+        return dmp.patch_toText(patches);
+    }
+
+    @Benchmark
+    public String toTextReference() {
+        return reference.patch_toText(patches);
+    }
+
+    @Benchmark
+    public Object fromText() {
+        return dmp.patch_fromText(text);
+    }
+
+    @Benchmark
+    public Object fromTextReference() {
+        return reference.patch_fromText(text);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(PatchCodecBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,77 @@
+package floobits.benchmarks;
+
+import floobits.common.dmp.FlooDmp;
+import floobits.common.dmp.diff_match_patch;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each step a patch takes, for a corpus file and an edit trace over it: patch_make and patch_toText on the sending
+ * side, patch_fromText and patch_apply on the receiving one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PatchRoundTripBenchmark {
+    @Param({"10000", "200000"})
+    public int size;
+
+    // Keystrokes, pastes and line deletes between the two versions.
+    @Param({"1", "20", "200"})
+    public int edits;
+
+    private final FlooDmp dmp = new FlooDmp();
+    private String before;
+    private String after;
+    private LinkedList<diff_match_patch.Patch> patches;
+    private String text;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        before = Corpus.text(random, size);
+        after = Corpus.replay(before, Corpus.trace(random, before, edits));
+        patches = dmp.patch_make(before, after);
+        text = dmp.patch_toText(patches);
+        if (!after.equals(dmp.patch_apply((LinkedList<diff_match_patch.Patch>) dmp.patch_fromText(text), before)[0])) {
+            throw new IllegalStateException("Patch doesn't round trip");
+        }
+    }
+
+    @Benchmark
+    public Object patchMake() {
+        return dmp.patch_make(before, after);
+    }
+
+    @Benchmark
+    public String toText() {
+        return dmp.patch_toText(patches);
+    }
+
+    @Benchmark
+    public Object fromText() {
+        return dmp.patch_fromText(text);
+    }
+
+    @Benchmark
+    public Object patchApply() {
+        return dmp.patch_apply(patches, before);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(PatchRoundTripBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
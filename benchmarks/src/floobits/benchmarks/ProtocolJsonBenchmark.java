@@ -0,0 +1,139 @@
+package floobits.benchmarks;
+
+import com.google.gson.Gson;
+import floobits.common.Hashing;
+import floobits.common.dmp.FlooDmp;
+import floobits.common.protocol.FlooPatch;
+import floobits.common.protocol.FlooUser;
+import floobits.common.protocol.json.receive.FlooHighlight;
+import floobits.common.protocol.json.receive.RoomInfoBuf;
+import floobits.common.protocol.json.send.RoomInfoResponse;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gson encoding and decoding of the messages sent most, a patch of a few keystrokes and a highlight, and the biggest
+ * one, room_info for a workspace of a couple of thousand buffers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolJsonBenchmark {
+    private static final int BUFS = 2000;
+    private static final int USERS = 5;
+
+    private final Gson gson = new Gson();
+    private FlooPatch patch;
+    private FlooHighlight highlight;
+    private RoomInfoResponse roomInfo;
+    private String patchJson;
+    private String highlightJson;
+    private String roomInfoJson;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String before = Corpus.text(random, 20000);
+        String after = Corpus.replay(before, Corpus.trace(random, before, 5));
+        FlooDmp dmp = new FlooDmp();
+        patch = new FlooPatch();
+        patch.id = 1;
+        patch.path = "src/floobits/common/protocol/buf/TextBuf.java";
+        patch.patch = dmp.patch_toText(dmp.patch_make(before, after));
+        patch.md5_before = Hashing.md5Hex(before);
+        patch.md5_after = Hashing.md5Hex(after);
+
+        ArrayList<ArrayList<Integer>> ranges = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 3; i++) {
+            int start = random.nextInt(before.length());
+            ranges.add(new ArrayList<Integer>(Arrays.asList(start, start + random.nextInt(80))));
+        }
+        highlight = new FlooHighlight(1, ranges, false, false, 7);
+
+        roomInfo = new RoomInfoResponse();
+        roomInfo.room_name = "benchmark";
+        roomInfo.owner = "floobits";
+        roomInfo.max_size = 200 * 1024 * 1024;
+        roomInfo.secret = false;
+        roomInfo.user_id = "7";
+        roomInfo.branchname = "master";
+        roomInfo.perms = new String[]{"get_buf", "patch", "highlight", "create_buf", "delete_buf", "rename_buf"};
+        roomInfo.anon_perms = new String[]{"get_buf"};
+        roomInfo.users = new HashMap<Integer, FlooUser>();
+        for (int i = 0; i < USERS; i++) {
+            FlooUser user = new FlooUser();
+            user.user_id = i;
+            user.username = "user" + i;
+            user.client = "IntelliJ";
+            user.platform = "Linux";
+            user.version = "0.10";
+            user.color = "#ff0000";
+            user.perms = roomInfo.perms;
+            roomInfo.users.put(i, user);
+        }
+        roomInfo.bufs = new HashMap<Integer, RoomInfoBuf>();
+        List<String> files = Corpus.files();
+        for (int i = 0; i < BUFS; i++) {
+            RoomInfoBuf buf = new RoomInfoBuf();
+            buf.id = i;
+            buf.path = "src/floobits/module" + (i % 40) + "/File" + i + ".java";
+            buf.md5 = Hashing.md5Hex(files.isEmpty() ? buf.path : files.get(i % files.size()));
+            buf.encoding = "utf8";
+            roomInfo.bufs.put(i, buf);
+        }
+
+        patchJson = gson.toJson(patch);
+        highlightJson = gson.toJson(highlight);
+        roomInfoJson = gson.toJson(roomInfo);
+    }
+
+    @Benchmark
+    public String encodePatch() {
+        return gson.toJson(patch);
+    }
+
+    @Benchmark
+    public Object decodePatch() {
+        return gson.fromJson(patchJson, FlooPatch.class);
+    }
+
+    @Benchmark
+    public String encodeHighlight() {
+        return gson.toJson(highlight);
+    }
+
+    @Benchmark
+    public Object decodeHighlight() {
+        return gson.fromJson(highlightJson, FlooHighlight.class);
+    }
+
+    @Benchmark
+    public String encodeRoomInfo() {
+        return gson.toJson(roomInfo);
+    }
+
+    @Benchmark
+    public Object decodeRoomInfo() {
+        return gson.fromJson(roomInfoJson, RoomInfoResponse.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ProtocolJsonBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,153 @@
+package floobits.benchmarks;
+
+import floobits.common.Hashing;
+import floobits.common.OutboundRequestHandler;
+import floobits.common.dmp.FlooDmp;
+import floobits.common.protocol.FlooPatch;
+import floobits.common.protocol.buf.TextBuf;
+import floobits.tests.MockContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TextBuf over a corpus file in a MockContext, end to end minus the connection:
+ * - keystroke: one edit of a trace through send_patch(offset, ...), as the editor listener reports it.
+ * - sendPatch: the whole document through send_patch(String), as on save or after an external change.
+ * - patch: a remote patch through TextBuf.patch into the document.
+ * Outbound work finishes on the hashing thread, which each invocation waits for.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TextBufBenchmark {
+    @Param({"10000", "200000"})
+    public int size;
+
+    // Edits between the two versions sendPatch and patch go back and forth between.
+    @Param({"1", "50"})
+    public int edits;
+
+    private static class Outbound extends OutboundRequestHandler {
+        volatile String textPatch;
+
+        Outbound() {
+            super(null, null, null);
+        }
+
+        @Override
+        public void patch(String textPatch, String before_md5, String after_md5, String after, TextBuf b, int events) {
+            this.textPatch = textPatch;
+        }
+
+        @Override
+        public void getBuf(Integer buf_id) {
+        }
+    }
+
+    private final FlooDmp dmp = new FlooDmp();
+    private final Outbound outbound = new Outbound();
+    private int coalesceWindow;
+    private TextBuf buf;
+    private String[] texts;
+    private FlooPatch[] remotePatches;
+    private List<Corpus.Edit> keystrokes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String before = Corpus.text(random, size);
+        List<Corpus.Edit> trace = Corpus.trace(random, before, Math.max(edits, 200));
+        String after = Corpus.replay(before, trace.subList(0, edits));
+        texts = new String[]{before, after};
+        remotePatches = new FlooPatch[]{remotePatch(before, after), remotePatch(after, before)};
+
+        // The trace and then its undo, so the buffer ends up where it started.
+        keystrokes = new ArrayList<Corpus.Edit>(trace);
+        for (int i = trace.size() - 1; i >= 0; i--) {
+            Corpus.Edit edit = trace.get(i);
+            keystrokes.add(new Corpus.Edit(edit.offset, edit.inserted, edit.removed));
+        }
+
+        MockContext context = new MockContext("/floobits/benchmark", "TextBuf.java", before);
+        buf = new TextBuf("TextBuf.java", 1, before, Hashing.md5Hex(before), context, outbound);
+        coalesceWindow = TextBuf.coalesceWindow;
+        TextBuf.coalesceWindow = 0;
+        next = 0;
+    }
+
+    @TearDown
+    public void tearDown() {
+        TextBuf.coalesceWindow = coalesceWindow;
+    }
+
+    private FlooPatch remotePatch(String before, String after) {
+        FlooPatch patch = new FlooPatch();
+        patch.path = "TextBuf.java";
+        patch.id = 1;
+        patch.patch = dmp.patch_toText(dmp.patch_make(before, after));
+        patch.md5_before = Hashing.md5Hex(before);
+        patch.md5_after = Hashing.md5Hex(after);
+        return patch;
+    }
+
+    private static void awaitHashing() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        Hashing.submit(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    @Benchmark
+    public String keystroke() throws InterruptedException {
+        Corpus.Edit edit = keystrokes.get(next);
+        next = (next + 1) % keystrokes.size();
+        int newLength = buf.buf.length() - edit.removed.length() + edit.inserted.length();
+        if (!buf.send_patch(edit.offset, edit.removed, edit.inserted, newLength)) {
+            throw new IllegalStateException("Buffer out of sync with the trace");
+        }
+        awaitHashing();
+        return outbound.textPatch;
+    }
+
+    @Benchmark
+    public String sendPatch() throws InterruptedException {
+        next ^= 1;
+        buf.send_patch(texts[next]);
+        awaitHashing();
+        return outbound.textPatch;
+    }
+
+    @Benchmark
+    public String patch() {
+        buf.patch(remotePatches[next]);
+        next ^= 1;
+        if (buf.buf.length() != texts[next].length()) {
+            throw new IllegalStateException("Remote patch didn't apply");
+        }
+        return buf.md5;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(TextBufBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -42,7 +42,7 @@ public class FloobitsApplication implements ApplicationComponent {
     }
 
     public void disposeComponent() {
-        // TODO: insert component disposal logic here
+        EventLoops.shutdown();
     }
 
     public synchronized void projectOpened(ContextImpl context) {
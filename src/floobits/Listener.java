@@ -29,12 +29,15 @@ import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Listener implements BulkFileListener, DocumentListener, SelectionListener, FileDocumentManagerListener, VisibleAreaListener, CaretListener {
     public final AtomicBoolean isListening = new AtomicBoolean(false);
     public final AtomicBoolean isSaving = new AtomicBoolean(false);
+    // Remote writes in progress, by path relative to the project. Changes to these files are theirs.
+    private final HashMap<String, Integer> suppressed = new HashMap<String, Integer>();
     private final ContextImpl context;
     private EditorEventHandler editorManager;
     private VirtualFileAdapter virtualFileAdapter;
@@ -96,6 +99,44 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
 
     }
 
+    public void suppress(String absPath) {
+        if (absPath == null) {
+            return;
+        }
+        String path = context.toProjectRelPath(absPath);
+        synchronized (suppressed) {
+            Integer count = suppressed.get(path);
+            suppressed.put(path, count == null ? 1 : count + 1);
+        }
+    }
+
+    public void resume(String absPath) {
+        if (absPath == null) {
+            return;
+        }
+        String path = context.toProjectRelPath(absPath);
+        synchronized (suppressed) {
+            Integer count = suppressed.get(path);
+            if (count == null || count <= 1) {
+                suppressed.remove(path);
+            } else {
+                suppressed.put(path, count - 1);
+            }
+        }
+    }
+
+    /**
+     * @return whether a change to the file at absPath is the user's, and not a remote write.
+     */
+    public boolean isListening(String absPath) {
+        if (!isListening.get()) {
+            return false;
+        }
+        synchronized (suppressed) {
+            return suppressed.isEmpty() || !suppressed.containsKey(context.toProjectRelPath(absPath));
+        }
+    }
+
     @Override
     public void fileWithNoDocumentChanged(@NotNull VirtualFile file) {
        Flog.debug("%s change but has no document.", file.getPath());
@@ -127,7 +168,11 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
             Flog.info("No virtual file for document %s", document);
             return;
         }
-        editorManager.change(new FileImpl(virtualFile));
+        if (!isListening(virtualFile.getPath())) {
+            return;
+        }
+        editorManager.change(new FileImpl(virtualFile), event.getOffset(), event.getOldFragment().toString(),
+                event.getNewFragment().toString(), document.getTextLength());
     }
 
     public void caretAdded(CaretEvent caretEvent) {
@@ -170,6 +215,9 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
         }
         for (VFileEvent event : events) {
             Flog.debug(" after event type %s", event.getClass().getSimpleName());
+            if (!isListening(event.getPath())) {
+                continue;
+            }
             if (event instanceof VFilePropertyChangeEvent) {
                 VFilePropertyChangeEvent propertyEvent = (VFilePropertyChangeEvent) event;
                 if (!propertyEvent.getPropertyName().equals("name")) {
@@ -265,7 +313,7 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
             Flog.log("Document is not writable? %s", event.getDocument());
         }
         final VirtualFile file = FileDocumentManager.getInstance().getFile(event.getDocument());
-        if (file == null)
+        if (file == null || !isListening(file.getPath()))
             return;
 
         Document document = event.getDocument();
@@ -296,7 +344,7 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
         }
         Integer offset = editor.getCaretModel().getOffset();
         rangesWithCaret.add(new ArrayList<Integer>(Arrays.asList(offset, offset)));
-        editorManager.changeSelection(path, rangesWithCaret, !isListening.get() || following);
+        editorManager.changeSelection(path, rangesWithCaret, !isListening(path) || following);
     }
 
     @Override
@@ -319,7 +367,7 @@ public class Listener implements BulkFileListener, DocumentListener, SelectionLi
             }
             ranges.add(new ArrayList<Integer>(Arrays.asList(start, end)));
         }
-        editorManager.changeSelection(path, ranges, !isListening.get());
+        editorManager.changeSelection(path, ranges, !isListening(path));
     }
 
 }
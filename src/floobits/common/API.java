@@ -250,12 +250,12 @@ public class API {
         client.getHostConfiguration().setHost(host, 443, new Protocol("https", new SSLProtocolSocketFactory() {
             @Override
             public Socket createSocket(Socket sock, String s, int i, boolean b) throws IOException {
-                return Utils.createSSLContext().getSocketFactory().createSocket(sock, s, i, b);
+                return Utils.getSSLContext().getSocketFactory().createSocket(sock, s, i, b);
             }
 
             @Override
             public Socket createSocket(String s, int i, InetAddress inetAddress, int i2) throws IOException {
-                Socket socket = Utils.createSSLContext().getSocketFactory().createSocket();
+                Socket socket = Utils.getSSLContext().getSocketFactory().createSocket();
                 socket.bind(new InetSocketAddress(inetAddress, i2));
                 socket.connect(new InetSocketAddress(s, i), 10000);
                 return socket;
@@ -263,7 +263,7 @@ public class API {
 
             @Override
             public Socket createSocket(String s, int i, InetAddress inetAddress, int i2, HttpConnectionParams httpConnectionParams) throws IOException {
-                Socket socket = Utils.createSSLContext().getSocketFactory().createSocket();
+                Socket socket = Utils.getSSLContext().getSocketFactory().createSocket();
                 socket.bind(new InetSocketAddress(inetAddress, i2));
                 socket.connect(new InetSocketAddress(s, i), 10000);
                 return socket;
@@ -271,7 +271,7 @@ public class API {
 
             @Override
             public Socket createSocket(String s, int i) throws IOException {
-                return Utils.createSSLContext().getSocketFactory().createSocket(s, i);
+                return Utils.getSSLContext().getSocketFactory().createSocket(s, i);
             }
         }, 443));
 
@@ -1,5 +1,7 @@
 package floobits.common;
 
+import floobits.common.protocol.Connection;
+import floobits.common.protocol.buf.TextBuf;
 import floobits.utilities.Flog;
 
 import java.util.Set;
@@ -29,6 +31,18 @@ public class Bootstrap {
             if (floorcJson != null && floorcJson.MAX_ERROR_REPORTS != null) {
                 API.maxErrorReports = floorcJson.MAX_ERROR_REPORTS;
             }
+            if (floorcJson != null && floorcJson.FLUSH_WINDOW_MS != null) {
+                Connection.flushWindow = floorcJson.FLUSH_WINDOW_MS;
+            }
+            if (floorcJson != null && floorcJson.EVENT_LOOP_THREADS != null) {
+                EventLoops.threads = Math.max(1, floorcJson.EVENT_LOOP_THREADS);
+            }
+            if (floorcJson != null && floorcJson.HEARTBEAT_INTERVAL_S != null) {
+                Connection.heartbeatInterval = Math.max(0, floorcJson.HEARTBEAT_INTERVAL_S);
+            }
+            if (floorcJson != null && floorcJson.PATCH_COALESCE_MS != null) {
+                TextBuf.coalesceWindow = floorcJson.PATCH_COALESCE_MS;
+            }
             String userAgent = String.format("%s-%s-%s %s (%s-%s)", editor, major, minor, pluginVersion, System.getProperty("os.name"), System.getProperty("os.version"));
             CrashDump.setUA(userAgent, editor);
         } catch (Throwable e) {
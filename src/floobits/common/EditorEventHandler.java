@@ -5,6 +5,7 @@ import floobits.common.interfaces.IDoc;
 import floobits.common.interfaces.IFactory;
 import floobits.common.interfaces.IFile;
 import floobits.common.protocol.buf.Buf;
+import floobits.common.protocol.buf.TextBuf;
 import floobits.common.protocol.handlers.FlooHandler;
 import floobits.common.protocol.json.receive.FlooHighlight;
 import floobits.utilities.Flog;
@@ -17,6 +18,8 @@ public class EditorEventHandler {
     public final FloobitsState state;
     private final OutboundRequestHandler outbound;
     private final InboundRequestHandler inbound;
+    // Path of the editor the last selection came from. Only touched on the UI thread.
+    private String focusedPath;
 
     public EditorEventHandler(IContext context, FloobitsState state, OutboundRequestHandler outbound, InboundRequestHandler inbound) {
         this.context = context;
@@ -74,6 +77,13 @@ public class EditorEventHandler {
     }
 
     public void change(IFile file) {
+        change(file, -1, null, null, -1);
+    }
+
+    /**
+     * @param offset where the editor replaced oldFragment with newFragment, or -1 to diff the whole document.
+     */
+    public void change(IFile file, int offset, String oldFragment, String newFragment, int newLength) {
         String filePath = file.getPath();
         if (!state.can("patch")) {
             return;
@@ -91,20 +101,36 @@ public class EditorEventHandler {
                 Flog.info("buf isn't populated yet %s", file.getPath());
                 return;
             }
+            if (offset >= 0 && buf instanceof TextBuf
+                    && ((TextBuf) buf).send_patch(offset, oldFragment, newFragment, newLength)) {
+                return;
+            }
             buf.send_patch(file);
         }
     }
 
     public void changeSelection(String path, ArrayList<ArrayList<Integer>> textRanges, boolean following) {
+        if (focusedPath != null && !focusedPath.equals(path)) {
+            // Focus moved to another editor, so nobody is typing into the old one any more.
+            flush(state.getBufByPath(focusedPath));
+        }
+        focusedPath = path;
         Buf buf = state.getBufByPath(path);
         outbound.highlight(buf, textRanges, false, following);
     }
 
     public void save(String path) {
         Buf buf = state.getBufByPath(path);
+        flush(buf);
         outbound.saveBuf(buf);
     }
 
+    private void flush(Buf buf) {
+        if (buf instanceof TextBuf) {
+            ((TextBuf) buf).flush();
+        }
+    }
+
     public void softDelete(HashSet<String> files) {
         if (!state.can("patch")) {
             return;
@@ -236,9 +262,9 @@ public class EditorEventHandler {
                         if (!state.readOnly && bufByPath.isPopulated()) {
                             return;
                         }
-                        synchronized (context) {
+                        synchronized (bufByPath) {
                             try {
-                                context.setListener(false);
+                                context.suppressListener(path);
                                 IDoc d = context.iFactory.getDocument(virtualFile);
                                 if (d == null) {
                                     return;
@@ -249,7 +275,7 @@ public class EditorEventHandler {
                             } catch (Throwable e) {
                                 Flog.error(e);
                             } finally {
-                                context.setListener(true);
+                                context.resumeListener(path);
                             }
                         }
                     }
@@ -4,41 +4,129 @@ import floobits.common.interfaces.IContext;
 import floobits.common.protocol.buf.Buf;
 import floobits.utilities.Flog;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Runs inbound work in the write action a slice at a time, so a burst of thousands of create_bufs after joining
+ * doesn't freeze the IDE. A slice stops after sliceMillis and queues the next one behind whatever else the UI thread
+ * has to do.
+ *
+ * Each buffer has a lane, keyed by its id, and its actions run in the order they were queued. Between buffers, the
+ * next action is picked by priority. Work a newer action makes pointless is dropped before it runs: a get_buf drops
+ * the patches and get_bufs queued for its buffer before it, and a highlight replaces the one its user has waiting.
+ *
+ * An action that can't go ahead yet, because work it needs is still running on another thread, calls retryWhenResumed.
+ * It stays at the head of its lane, and nothing else for its buffer runs until resume.
+ *
+ * Any thread may queue work. Queuing only adds to a lock-free inbox and, if no slice is scheduled, schedules one.
+ * Everything else, lanes included, belongs to the slice that moves the inbox into its lanes on the UI thread.
+ */
 public class EditorScheduler {
-    public final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+    public enum Priority {
+        // Patches to a file in a selected editor. Patches are promoted to this when their file is selected.
+        FOCUSED_PATCH,
+        PATCH,
+        HIGHLIGHT,
+        // Whole file writes, saves, renames and deletes.
+        WRITE
+    }
+
+    // The write action gives up the UI thread after running actions for this many ms.
+    public static int sliceMillis = 20;
+
+    // Lane key for work that isn't for a buffer.
+    private static final Object NO_BUF = new Object();
+
     private final IContext context;
-    // buffer ids are not removed from readOnlyBufferIds
+    private final SchedulerStats stats = new SchedulerStats();
+    // Queued actions not yet in a lane.
+    private final ConcurrentLinkedQueue<QueuedAction> inbox = new ConcurrentLinkedQueue<QueuedAction>();
+    // Set by whoever schedules a slice. Cleared only by a slice that leaves no work behind.
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // Bumped by reset. Actions queued before it are dropped.
+    private final AtomicInteger epoch = new AtomicInteger();
+    // Everything below is only touched by runSlice.
+    private int laneEpoch;
+    private final HashMap<Object, Lane> lanes = new HashMap<Object, Lane>();
+    // Lanes with an action waiting, by the priority of that action.
+    private final List<ArrayDeque<Lane>> ready = new ArrayList<ArrayDeque<Lane>>();
+    // Paths relative to the project of the files in selected editors, as of the start of the slice.
+    private HashSet<String> focused = new HashSet<String>();
+    // The highlight each user has waiting.
+    private final HashMap<Integer, QueuedAction> highlights = new HashMap<Integer, QueuedAction>();
+    private int backlog;
+    // Set by the running action to be run again once its lane is resumed.
+    private boolean retryRunning;
     private final Runnable dequeueRunnable = new Runnable() {
         @Override
         public void run() {
-            if (queue.size() > 5) {
-                Flog.log("Doing %s work", queue.size());
-            }
-            while (true) {
-                // TODO: set a limit here and continue later
-                Runnable action = queue.poll();
-                if (action == null) {
-                    return;
-                }
-                action.run();
-            }
+            runSlice();
         }
     };
 
+    /**
+     * Actions for one buffer id, or for no buffer at all.
+     */
+    private static class Lane {
+        final Object key;
+        final ArrayDeque<QueuedAction> actions = new ArrayDeque<QueuedAction>();
+        // In ready, running or held.
+        boolean active;
+        // Waiting for resume. Not in ready.
+        boolean held;
+
+        Lane(Object key) {
+            this.key = key;
+        }
+    }
+
     class QueuedAction implements Runnable {
         public final Buf buf;
+        public final Priority priority;
         public RunLater<Buf> runnable;
+        private final Runnable action;
+        private final Object key;
+        private final int epoch = EditorScheduler.this.epoch.get();
+        private boolean getBuf;
+        // Not an action: resumes the lane for key.
+        private boolean resume;
+        // The user whose highlight this is, if a newer one may replace it.
+        private Integer highlightUser;
+        // Superseded before it ran. Left in its lane and skipped when it comes up.
+        private boolean dropped;
 
-        QueuedAction(Buf buf, RunLater<Buf> runnable) {
+        QueuedAction(Buf buf, Priority priority, RunLater<Buf> runnable) {
             this.runnable = runnable;
             this.buf = buf;
+            this.priority = priority;
+            this.action = null;
+            // By id, so a buffer made again for the same id stays in order with the old one.
+            this.key = buf.id != null ? buf.id : buf;
+        }
+
+        QueuedAction(Priority priority, Runnable action) {
+            this.buf = null;
+            this.priority = priority;
+            this.action = action;
+            this.key = NO_BUF;
         }
+
         public void run() {
             long l = System.currentTimeMillis();
-            synchronized (buf) {
-                runnable.run(buf);
+            if (buf == null) {
+                action.run();
+            } else {
+                synchronized (buf) {
+                    runnable.run(buf);
+                }
             }
             long l1 = System.currentTimeMillis() - l;
             if (l1 > 200) {
@@ -49,31 +137,307 @@ public class EditorScheduler {
 
     public EditorScheduler(IContext context) {
         this.context = context;
+        for (int i = 0; i < Priority.values().length; i++) {
+            ready.add(new ArrayDeque<Lane>());
+        }
     }
 
     public void shutdown() {
+        Flog.log("Editor scheduler: %s", stats);
         reset();
     }
 
+    public SchedulerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Queues a write for buf.
+     */
     public void queue(Buf buf, RunLater<Buf> runnable) {
+        queue(buf, Priority.WRITE, runnable);
+    }
+
+    public void queue(Buf buf, Priority priority, RunLater<Buf> runnable) {
+        if (buf == null) {
+            Flog.log("Buf is null abandoning adding new queue action.");
+            return;
+        }
+        add(new QueuedAction(buf, priority, runnable));
+    }
+
+    /**
+     * Queues writing a get_buf response to buf. Patches and get_bufs already queued for buf are dropped, since the
+     * server's text includes them.
+     */
+    public void queueGetBuf(Buf buf, RunLater<Buf> runnable) {
         if (buf == null) {
             Flog.log("Buf is null abandoning adding new queue action.");
             return;
         }
-        QueuedAction queuedAction = new QueuedAction(buf, runnable);
-        queue(queuedAction);
+        QueuedAction action = new QueuedAction(buf, Priority.WRITE, runnable);
+        action.getBuf = true;
+        add(action);
     }
 
+    /**
+     * Queues showing a highlight. If userId isn't null, it replaces the highlight that user has waiting, wherever it
+     * is. Pass null for highlights that must not be dropped, like summons.
+     */
+    public void queueHighlight(Buf buf, Integer userId, RunLater<Buf> runnable) {
+        if (buf == null) {
+            Flog.log("Buf is null abandoning adding new queue action.");
+            return;
+        }
+        QueuedAction action = new QueuedAction(buf, Priority.HIGHLIGHT, runnable);
+        action.highlightUser = userId;
+        add(action);
+    }
+
+    /**
+     * Queues work that isn't for any one buffer. It runs in order with other such work.
+     */
     public void queue(Runnable runnable) {
-        queue.add(runnable);
-        if (queue.size() > 1) {
+        queue(Priority.WRITE, runnable);
+    }
+
+    public void queue(Priority priority, Runnable runnable) {
+        add(new QueuedAction(priority, runnable));
+    }
+
+    /**
+     * Only from an action running for a buffer: puts the action back at the head of its lane, which waits for
+     * resume(buf) before running it again.
+     */
+    public void retryWhenResumed() {
+        retryRunning = true;
+    }
+
+    /**
+     * Lets buf's held lane run again. Safe to call from any thread, and a no-op if the lane isn't held.
+     */
+    public void resume(Buf buf) {
+        QueuedAction action = new QueuedAction(buf, Priority.PATCH, null);
+        action.resume = true;
+        add(action);
+    }
+
+    private void add(QueuedAction action) {
+        inbox.offer(action);
+        schedule();
+    }
+
+    /**
+     * Schedules a slice unless one already is. The slice that clears scheduled checks the inbox after, so an action
+     * added while it finished is never left waiting for the next one.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            context.writeThread(dequeueRunnable);
+        }
+    }
+
+    /**
+     * Moves the inbox into the lanes.
+     */
+    private void takeInbox() {
+        int current = epoch.get();
+        if (laneEpoch != current) {
+            laneEpoch = current;
+            clearLanes();
+        }
+        QueuedAction action;
+        while ((action = inbox.poll()) != null) {
+            if (action.epoch != current) {
+                continue;
+            }
+            Lane lane = lanes.get(action.key);
+            if (action.resume) {
+                if (lane != null && lane.held) {
+                    lane.held = false;
+                    makeReady(lane);
+                }
+                continue;
+            }
+            if (lane == null) {
+                lane = new Lane(action.key);
+                lanes.put(action.key, lane);
+            }
+            if (action.getBuf) {
+                for (QueuedAction queued : lane.actions) {
+                    if (queued.getBuf || queued.priority == Priority.PATCH) {
+                        drop(queued);
+                    }
+                }
+            }
+            if (action.highlightUser != null) {
+                QueuedAction previous = highlights.put(action.highlightUser, action);
+                if (previous != null) {
+                    drop(previous);
+                }
+            }
+            lane.actions.add(action);
+            if (!lane.active) {
+                lane.active = true;
+                makeReady(lane);
+            }
+            backlog++;
+        }
+        stats.recordBacklog(backlog);
+    }
+
+    private void drop(QueuedAction action) {
+        if (action.dropped) {
+            return;
+        }
+        action.dropped = true;
+        backlog--;
+        stats.superseded.incrementAndGet();
+    }
+
+    private void makeReady(Lane lane) {
+        ready.get(priority(lane).ordinal()).add(lane);
+    }
+
+    private Priority priority(Lane lane) {
+        QueuedAction head = lane.actions.peek();
+        Priority priority = head.priority;
+        if (priority == Priority.PATCH && head.buf != null && focused.contains(head.buf.path)) {
+            return Priority.FOCUSED_PATCH;
+        }
+        return priority;
+    }
+
+    /**
+     * @return the next lane to run, with its head not dropped.
+     */
+    private Lane nextLane() {
+        for (ArrayDeque<Lane> lanesReady : ready) {
+            Lane lane;
+            while ((lane = lanesReady.poll()) != null) {
+                while (!lane.actions.isEmpty() && lane.actions.peek().dropped) {
+                    lane.actions.poll();
+                }
+                if (!lane.actions.isEmpty()) {
+                    return lane;
+                }
+                retire(lane);
+            }
+        }
+        return null;
+    }
+
+    private void retire(Lane lane) {
+        lane.active = false;
+        lanes.remove(lane.key);
+    }
+
+    private HashSet<String> focusedPaths() {
+        HashSet<String> paths = new HashSet<String>();
+        Collection<String> absPaths = context.iFactory == null ? null : context.iFactory.getFocusedPaths();
+        if (absPaths == null) {
+            return paths;
+        }
+        for (String absPath : absPaths) {
+            String path = context.toProjectRelPath(absPath);
+            if (path != null) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    private void runSlice() {
+        long start = System.nanoTime();
+        long budget = sliceMillis * 1000000L;
+        int count = 0;
+        focused = focusedPaths();
+        takeInbox();
+        // Patches that were waiting when their file got selected.
+        ArrayDeque<Lane> patches = ready.get(Priority.PATCH.ordinal());
+        for (int i = patches.size(); i > 0; i--) {
+            makeReady(patches.poll());
+        }
+        if (backlog > 5) {
+            Flog.log("Doing %s work", backlog);
+        }
+        // Always make some progress, however slow the last slice's action was.
+        while (count == 0 || System.nanoTime() - start < budget) {
+            if (epoch.get() != laneEpoch) {
+                takeInbox();
+            }
+            Lane lane = nextLane();
+            if (lane == null) {
+                break;
+            }
+            QueuedAction action = lane.actions.poll();
+            if (action.highlightUser != null && highlights.get(action.highlightUser) == action) {
+                highlights.remove(action.highlightUser);
+            }
+            backlog--;
+            retryRunning = false;
+            try {
+                action.run();
+            } catch (Throwable e) {
+                Flog.error(e);
+            }
+            count++;
+            if (epoch.get() != laneEpoch) {
+                // Reset while it ran. The lanes are cleared next time round.
+                continue;
+            }
+            if (retryRunning && action.buf != null) {
+                lane.actions.addFirst(action);
+                lane.held = true;
+                backlog++;
+            } else if (!lane.actions.isEmpty()) {
+                makeReady(lane);
+            } else {
+                retire(lane);
+            }
+        }
+        if (epoch.get() != laneEpoch) {
+            takeInbox();
+        }
+        stats.recordSlice(System.nanoTime() - start, count, backlog);
+        if (hasReady()) {
+            context.writeThread(dequeueRunnable);
             return;
         }
-        context.writeThread(dequeueRunnable);
+        scheduled.set(false);
+        if (!inbox.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * @return whether a lane could run now. Work in held lanes waits for resume to schedule a slice.
+     */
+    private boolean hasReady() {
+        for (ArrayDeque<Lane> lanesReady : ready) {
+            if (!lanesReady.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clearLanes() {
+        lanes.clear();
+        highlights.clear();
+        for (ArrayDeque<Lane> lanesReady : ready) {
+            lanesReady.clear();
+        }
+        backlog = 0;
     }
 
+    /**
+     * Drops everything queued so far. Safe to call from any thread.
+     */
     public void reset() {
-        queue.clear();
+        // The next slice clears the lanes and skips what was already in the inbox. Clearing the inbox here could
+        // lose an action queued just after.
+        epoch.incrementAndGet();
     }
 
 }
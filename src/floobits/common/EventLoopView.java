@@ -0,0 +1,59 @@
+package floobits.common;
+
+import io.fletty.bootstrap.Bootstrap;
+import io.fletty.channel.EventLoop;
+import io.fletty.channel.socket.nio.NioSocketChannel;
+import io.fletty.util.concurrent.Future;
+import io.fletty.util.concurrent.GenericFutureListener;
+import io.fletty.util.concurrent.ScheduledFuture;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A context's slice of the shared event loop group. Everything a context does runs on one loop, so its timers and its
+ * channel stay ordered with each other, and shutting a context down cancels only the timers it scheduled.
+ */
+public class EventLoopView {
+    private final EventLoop loop;
+    private final Set<ScheduledFuture> timeouts = Collections.newSetFromMap(new ConcurrentHashMap<ScheduledFuture, Boolean>());
+    private volatile boolean shutdown = false;
+
+    EventLoopView(EventLoop loop) {
+        this.loop = loop;
+    }
+
+    public void bootstrap(Bootstrap b) {
+        b.group(loop);
+        b.channel(NioSocketChannel.class);
+    }
+
+    public ScheduledFuture schedule(Runnable runnable, int time) {
+        if (shutdown) {
+            return null;
+        }
+        final ScheduledFuture<?> future = loop.schedule(runnable, time, TimeUnit.MILLISECONDS);
+        timeouts.add(future);
+        future.addListener(new GenericFutureListener<Future<Object>>() {
+            @Override
+            public void operationComplete(Future<Object> f) throws Exception {
+                timeouts.remove(future);
+            }
+        });
+        return future;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        for (ScheduledFuture timeout : timeouts) {
+            timeout.cancel(false);
+        }
+        timeouts.clear();
+    }
+}
@@ -0,0 +1,42 @@
+package floobits.common;
+
+import floobits.utilities.Flog;
+import io.fletty.channel.EventLoopGroup;
+import io.fletty.channel.nio.NioEventLoopGroup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one event loop group shared by every open project. It is created on first use and torn down when the
+ * application component is disposed. Contexts never hold the group itself, they get an EventLoopView of it.
+ */
+public class EventLoops {
+    // Connections are mostly idle, a couple of threads are enough for several joined projects.
+    public static int threads = 2;
+    private static EventLoopGroup group;
+
+    private static void create() {
+        group = new NioEventLoopGroup(threads);
+        Flog.log("Using %d NIO event loop threads.", threads);
+    }
+
+    public static synchronized EventLoopView newView() {
+        if (group == null || group.isShuttingDown()) {
+            create();
+        }
+        return new EventLoopView(group.next());
+    }
+
+    public static synchronized void shutdown() {
+        if (group == null) {
+            return;
+        }
+        try {
+            group.shutdownGracefully(0, 500, TimeUnit.MILLISECONDS);
+        } catch (Throwable e) {
+            Flog.error(e);
+        } finally {
+            group = null;
+        }
+    }
+}
@@ -13,6 +13,10 @@ public class FloorcJson implements Serializable {
     public String share_dir;
     public Integer MAX_ERROR_REPORTS;
     public String DEFAULT_HOST;
+    public Integer FLUSH_WINDOW_MS;
+    public Integer EVENT_LOOP_THREADS;
+    public Integer HEARTBEAT_INTERVAL_S;
+    public Integer PATCH_COALESCE_MS;
 
     public static FloorcJson getFloorcJsonFromSettings () {
         FloorcJson floorcJson = null;
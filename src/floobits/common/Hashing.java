@@ -0,0 +1,115 @@
+package floobits.common;
+
+import floobits.utilities.Flog;
+import org.apache.commons.codec.binary.Hex;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * md5 of buffer text without DigestUtils' fresh MessageDigest and full size byte[] per call. Each thread keeps its own
+ * digest and encodes the text as UTF-8 into a small reusable chunk. Gives the same hex as DigestUtils.md5Hex(String),
+ * including '?' for unpaired surrogates.
+ */
+public class Hashing {
+    private static final int CHUNK_SIZE = 8192;
+
+    private static class State {
+        final MessageDigest digest;
+        final char[] chars = new char[CHUNK_SIZE];
+        final byte[] bytes = new byte[CHUNK_SIZE * 3];
+
+        State() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    // One thread, so hashes for a buffer finish in the order they were asked for.
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Floobits hashing");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public static String md5Hex(String text) {
+        State s = state.get();
+        MessageDigest digest = s.digest;
+        char[] chars = s.chars;
+        byte[] bytes = s.bytes;
+        int length = text.length();
+        digest.reset();
+        for (int start = 0; start < length; ) {
+            int end = Math.min(length, start + CHUNK_SIZE);
+            // Keep surrogate pairs in one chunk.
+            if (end < length && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            int count = end - start;
+            text.getChars(start, end, chars, 0);
+            start = end;
+
+            int pos = 0;
+            int i = 0;
+            // Most source text is ASCII.
+            while (i < count && chars[i] < 0x80) {
+                bytes[pos++] = (byte) chars[i++];
+            }
+            for (; i < count; i++) {
+                char c = chars[i];
+                if (c < 0x80) {
+                    bytes[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[pos++] = (byte) (0xc0 | (c >> 6));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                    bytes[pos++] = (byte) (0xe0 | (c >> 12));
+                    bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(chars[i + 1])) {
+                    int codePoint = Character.toCodePoint(c, chars[++i]);
+                    bytes[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                    bytes[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    bytes[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    bytes[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else {
+                    bytes[pos++] = '?';
+                }
+            }
+            digest.update(bytes, 0, pos);
+        }
+        return new String(Hex.encodeHex(digest.digest()));
+    }
+
+    /**
+     * Runs hashing work off the calling thread, in submission order.
+     */
+    public static void submit(final Runnable runnable) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Throwable e) {
+                    Flog.error(e);
+                }
+            }
+        });
+    }
+}
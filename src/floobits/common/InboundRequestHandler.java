@@ -7,6 +7,7 @@ import floobits.GitUtils;
 import floobits.common.interfaces.IContext;
 import floobits.common.interfaces.IDoc;
 import floobits.common.interfaces.IFile;
+import floobits.common.protocol.Base;
 import floobits.common.protocol.FlooPatch;
 import floobits.common.protocol.FlooUser;
 import floobits.common.protocol.buf.BinaryBuf;
@@ -38,7 +39,7 @@ public class InboundRequestHandler {
 
     enum Events {
         room_info, get_buf, patch, highlight, saved, join, part, create_buf, ack,
-        request_perms, msg, rename_buf, term_stdin, term_stdout, delete_buf, perms, ping
+        request_perms, msg, rename_buf, term_stdin, term_stdout, delete_buf, perms, ping, pong
     }
     public InboundRequestHandler(IContext context, FloobitsState state, OutboundRequestHandler outbound,
                                  boolean shouldUpload,  IFile dirToAdd) {
@@ -79,6 +80,9 @@ public class InboundRequestHandler {
                 continue;
             }
             if (!b.md5.equals(buf.md5)) {
+                if (buf instanceof TextBuf && outbound.replayPatches((TextBuf) buf, b.md5)) {
+                    continue;
+                }
                 conflicts.add(buf);
                 conflictedPaths.add(buf.path);
             }
@@ -217,7 +221,7 @@ public class InboundRequestHandler {
                 rule += "*";
                 strings.add(rule);
             }
-            context.setListener(false);
+            context.suppressListener(flooignore);
             FileUtils.writeLines(f, strings);
             IFile fileByIoFile = context.iFactory.findFileByIoFile(f);
             if (fileByIoFile != null) {
@@ -227,7 +231,7 @@ public class InboundRequestHandler {
         } catch (IOException e) {
             Flog.error(e);
         } finally {
-            context.setListener(true);
+            context.resumeListener(flooignore);
         }
         shouldUpload = false;
         dirToAdd = null;
@@ -379,6 +383,12 @@ public class InboundRequestHandler {
     void _on_term_stdout(JsonObject jsonObject) {}
     void _on_term_stdin(JsonObject jsonObject) {}
 
+    void _on_ack(JsonObject jsonObject) {
+        if (jsonObject.has("req_id")) {
+            outbound.ack(jsonObject.get("req_id").getAsInt());
+        }
+    }
+
     void _on_ping(JsonObject jsonObject) {
         outbound.pong();
     }
@@ -399,7 +409,9 @@ public class InboundRequestHandler {
             return;
         }
         final Buf buf = state.bufs.get(flooHighlight.id);
-        editor.queue(buf, new RunLater<Buf>() {
+        // Only the latest highlight from a user matters, but every summon should be shown.
+        Integer userId = flooHighlight.summon ? null : flooHighlight.user_id;
+        editor.queueHighlight(buf, userId, new RunLater<Buf>() {
             @Override
             public void run(Buf arg) {
                 IDoc iDoc = context.iFactory.getDocument(buf.path);
@@ -442,23 +454,22 @@ public class InboundRequestHandler {
         });
     }
 
-    void _on_create_buf(JsonObject obj) {
-        Gson gson = new Gson();
-        GetBufResponse res = gson.fromJson(obj, (Type) CreateBufResponse.class);
+    void _on_create_buf(CreateBufResponse res) {
+        if (state.bufs == null) {
+            return;
+        }
         Buf buf;
         if (res.encoding.equals(Encoding.BASE64.toString())) {
             buf = new BinaryBuf(res.path, res.id, new Base64().decode(res.buf.getBytes()), res.md5, context, outbound);
         } else {
             buf = new TextBuf(res.path, res.id, res.buf, res.md5, context, outbound);
         }
+        // Registered right away, so patches for it that arrive before the write runs find it.
+        state.bufs.put(buf.id, buf);
+        state.pathsToIds.put(buf.path, buf.id);
         editor.queue(buf, new RunLater<Buf>() {
             @Override
             public void run(Buf buf) {
-                if (state.bufs == null) {
-                    return;
-                }
-                state.bufs.put(buf.id, buf);
-                state.pathsToIds.put(buf.path, buf.id);
                 buf.write();
                 fileAddedMessageThrottler.statusMessage(String.format("Added the file, %s, to the workspace.", buf.path));
             }
@@ -492,13 +503,16 @@ public class InboundRequestHandler {
         }
     }
 
-    void _on_patch(JsonObject obj) {
-        final FlooPatch res = new Gson().fromJson(obj, (Type) FlooPatch.class);
+    void _on_patch(final FlooPatch res) {
         if (state == null || state.bufs == null) {
             return;
         }
         final Buf buf = this.state.bufs.get(res.id);
-        editor.queue(buf, new RunLater<Buf>() {
+        if (buf instanceof TextBuf && res.patch.length() > 0) {
+            ((TextBuf) buf).queuePatch(res, editor);
+            return;
+        }
+        editor.queue(buf, EditorScheduler.Priority.PATCH, new RunLater<Buf>() {
             @Override
             public void run(Buf b) {
                 if (b.buf == null) {
@@ -515,14 +529,14 @@ public class InboundRequestHandler {
             }
         });
     }
-    void _on_room_info(final JsonObject obj) {
+    void _on_room_info(final RoomInfoResponse ri) {
         context.setupFloobitsWindow();
         context.readThread(new Runnable() {
             @Override
             public void run() {
                 try {
-                    RoomInfoResponse ri = new Gson().fromJson(obj, (Type) RoomInfoResponse.class);
                     state.handleRoomInfo(ri);
+                    outbound.setOffline(false);
                     context.statusMessage(String.format("You successfully joined %s.",
                             Utils.getLinkHTML(state.url.toString(), state.url.toString())));
 
@@ -558,17 +572,27 @@ public class InboundRequestHandler {
         });
     }
 
-    void _on_get_buf(JsonObject obj) {
+    void _on_get_buf(final GetBufResponse res) {
         if (state == null || state.bufs == null) {
             return;
         }
-        Gson gson = new Gson();
-        final GetBufResponse res = gson.fromJson(obj, (Type) GetBufResponse.class);
-        Buf b = state.bufs.get(res.id);
-        editor.queue(b, new RunLater<Buf>() {
+        Buf<?> b = state.bufs.get(res.id);
+        if (b == null) {
+            return;
+        }
+        if (b instanceof TextBuf) {
+            ((TextBuf) b).dropRemotePatches();
+        }
+        getBuf(b, res);
+    }
+
+    private <T> void getBuf(final Buf<T> b, final GetBufResponse res) {
+        // Decoding can be slow for big files, and needn't wait for the write action.
+        final T decoded = b.decode(res.buf);
+        editor.queueGetBuf(b, new RunLater<Buf>() {
             @Override
-            public void run(Buf b) {
-                b.set(res.buf, res.md5);
+            public void run(Buf buf) {
+                b.setDecoded(decoded, res.md5);
                 b.write();
                 Flog.info("on get buffed. %s", b.path);
             }
@@ -585,15 +609,6 @@ public class InboundRequestHandler {
             return;
         }
         switch (event) {
-            case room_info:
-                _on_room_info(obj);
-                break;
-            case get_buf:
-                _on_get_buf(obj);
-                break;
-            case patch:
-                _on_patch(obj);
-                break;
             case highlight:
                 _on_highlight(obj);
                 break;
@@ -606,9 +621,6 @@ public class InboundRequestHandler {
             case part:
                 _on_part(obj);
                 break;
-            case create_buf:
-                _on_create_buf(obj);
-                break;
             case request_perms:
                 _on_request_perms(obj);
                 break;
@@ -634,6 +646,36 @@ public class InboundRequestHandler {
                 _on_ping(obj);
                 break;
             case ack:
+                _on_ack(obj);
+                break;
+            case pong:
+                break;
+            default:
+                Flog.log("No handler for %s", name);
+        }
+    }
+
+    public void on_data(String name, Base body) {
+        Events event;
+
+        try {
+            event = Events.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            Flog.log("No enum for %s", name);
+            return;
+        }
+        switch (event) {
+            case room_info:
+                _on_room_info((RoomInfoResponse) body);
+                break;
+            case get_buf:
+                _on_get_buf((GetBufResponse) body);
+                break;
+            case patch:
+                _on_patch((FlooPatch) body);
+                break;
+            case create_buf:
+                _on_create_buf((CreateBufResponse) body);
                 break;
             default:
                 Flog.log("No handler for %s", name);
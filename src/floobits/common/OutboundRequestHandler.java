@@ -18,6 +18,9 @@ public class OutboundRequestHandler {
     private final FloobitsState state;
     private final Connection conn;
     private FlooHighlight previousHighlight;
+    private final PatchJournal journal = new PatchJournal();
+    // Set from disconnect until the next room_info has been handled. Patches sent meanwhile would be dropped.
+    private volatile boolean offline = false;
 
     public OutboundRequestHandler(IContext context, FloobitsState state, Connection conn) {
         this.context = context;
@@ -37,10 +40,11 @@ public class OutboundRequestHandler {
         synchronized (buf) {
             buf.set(null, null);
         }
+        journal.forget(buf_id);
         conn.write(new GetBuf(buf_id));
     }
 
-    public void patch(String textPatch, String before_md5, TextBuf b) {
+    public void patch(String textPatch, String before_md5, String after_md5, String after, TextBuf b, int events) {
         if (!state.can("patch")) {
             return;
         }
@@ -49,10 +53,59 @@ public class OutboundRequestHandler {
             return;
         }
         Flog.log("Sending patch for %s", b.path);
-        FlooPatch req = new FlooPatch(textPatch, before_md5, b);
+        FlooPatch req = new FlooPatch(textPatch, before_md5, after_md5, b);
+        journal.record(req.req_id, b.id, before_md5, after_md5, after, textPatch);
+        conn.getOutboundStats().recordPatch(events);
         conn.write(req);
     }
 
+    public boolean isOffline() {
+        return offline;
+    }
+
+    public void setOffline(boolean offline) {
+        if (this.offline != offline) {
+            Flog.log(offline ? "Offline. Edits will be sent on reconnect." : "Back online. %s", journal);
+        }
+        this.offline = offline;
+    }
+
+    /**
+     * Instead of a patch, remember what the server last saw of b. replayPatches diffs against it after reconnect.
+     */
+    public void offlineChange(String before, String before_md5, TextBuf b) {
+        if (!state.can("patch")) {
+            return;
+        }
+        journal.recordOffline(b.id, before_md5, before);
+    }
+
+    public void ack(int req_id) {
+        journal.ack(req_id);
+    }
+
+    /**
+     * Called after reconnecting when the server's md5 for b doesn't match ours. If the server is at a state we sent
+     * patches from or to, one patch from there to the local text catches it up.
+     * @return false if the buffer is a real conflict.
+     */
+    public boolean replayPatches(TextBuf b, String remote_md5) {
+        if (!state.can("patch")) {
+            return false;
+        }
+        String remote = journal.find(b.id, remote_md5);
+        if (remote == null) {
+            return false;
+        }
+        journal.forget(b.id);
+        Flog.log("Replaying unacknowledged changes to %s", b.path);
+        b.flush();
+        String current = b.buf;
+        b.set(remote, remote_md5);
+        b.send_patch(current);
+        return true;
+    }
+
     void createBuf(IFile virtualFile) {
         Buf buf = Buf.createBuf(virtualFile, context, this);
         if (buf == null) {
@@ -69,6 +122,7 @@ public class OutboundRequestHandler {
             return;
         }
         buf.cancelTimeout();
+        journal.forget(buf.id);
         conn.write(new DeleteBuf(buf.id, unlink));
     }
 
@@ -96,6 +150,7 @@ public class OutboundRequestHandler {
             return;
         }
         b.cancelTimeout();
+        journal.forget(b.id);
         conn.write(new SetBuf(b));
     }
 
@@ -0,0 +1,236 @@
+package floobits.common;
+
+import floobits.common.dmp.FlooDmp;
+import floobits.common.dmp.diff_match_patch;
+import floobits.utilities.Flog;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * Patches we have sent but the server hasn't acked yet, keyed by req_id. Each entry keeps the patch text and the md5s
+ * on either side of it. Only the newest text of a buffer is kept whole (a string the buffer already held), older texts
+ * are rebuilt from it by undoing patches, newest first. If the connection drops, the server's md5 for a buffer after
+ * reconnect will usually match one of those texts, and a single patch from it to the local text replaces the conflict
+ * dialog. Edits made while offline only remember the buffer's last synced text, so reconnecting costs one diff per
+ * edited buffer.
+ */
+public class PatchJournal {
+    public static int maxPerBuf = 200;
+    // Patch text and kept texts per buffer. Past this the oldest entries are forgotten, but never the newest.
+    public static int maxCharsPerBuf = 4 * 1024 * 1024;
+
+    private static final FlooDmp dmp = new FlooDmp();
+
+    private static class Entry {
+        final int reqId;
+        final int bufId;
+        final String beforeMd5;
+        final String afterMd5;
+        final String patch;
+        // Set for the newest entry, and for any entry the next one wasn't made from. Undoing can't get past those.
+        String afterText;
+        int chars;
+
+        Entry(int reqId, int bufId, String beforeMd5, String afterMd5, String afterText, String patch) {
+            this.reqId = reqId;
+            this.bufId = bufId;
+            this.beforeMd5 = beforeMd5;
+            this.afterMd5 = afterMd5;
+            this.afterText = afterText;
+            this.patch = patch;
+            chars = patch.length();
+        }
+    }
+
+    private static class Entries {
+        final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+        long chars;
+    }
+
+    private static class Base {
+        final String md5;
+        final String text;
+
+        Base(String md5, String text) {
+            this.md5 = md5;
+            this.text = text;
+        }
+    }
+
+    private final LinkedHashMap<Integer, Entry> pending = new LinkedHashMap<Integer, Entry>();
+    private final HashMap<Integer, Entries> byBuf = new HashMap<Integer, Entries>();
+    // Buffer id -> the text the buffer had when it was first edited offline. Later offline edits don't move it.
+    private final HashMap<Integer, Base> offline = new HashMap<Integer, Base>();
+
+    public synchronized void record(int reqId, int bufId, String beforeMd5, String afterMd5, String afterText,
+                                    String patch) {
+        Entry entry = new Entry(reqId, bufId, beforeMd5, afterMd5, afterText, patch);
+        Entries entries = byBuf.get(bufId);
+        if (entries == null) {
+            entries = new Entries();
+            byBuf.put(bufId, entries);
+        }
+        Entry last = entries.entries.peekLast();
+        if (last != null) {
+            if (beforeMd5 != null && beforeMd5.equals(last.afterMd5)) {
+                last.afterText = null;
+            } else {
+                // Someone else's patch came in between, so last's text can't be rebuilt from this one.
+                last.chars += last.afterText.length();
+                entries.chars += last.afterText.length();
+            }
+        }
+        entries.entries.addLast(entry);
+        entries.chars += entry.chars;
+        pending.put(reqId, entry);
+        if (entries.entries.size() <= maxPerBuf && entries.chars <= maxCharsPerBuf) {
+            return;
+        }
+        Flog.info("Too many unacked patches for buf %s, forgetting the oldest.", bufId);
+        while (entries.entries.size() > 1 && (entries.entries.size() > maxPerBuf || entries.chars > maxCharsPerBuf)) {
+            Entry e = entries.entries.removeFirst();
+            entries.chars -= e.chars;
+            pending.remove(e.reqId);
+        }
+    }
+
+    public synchronized void recordOffline(int bufId, String md5, String text) {
+        if (offline.containsKey(bufId)) {
+            return;
+        }
+        offline.put(bufId, new Base(md5, text));
+    }
+
+    /**
+     * The server applies patches for a buffer in order, so an ack also covers anything sent before it for that buffer.
+     */
+    public synchronized void ack(int reqId) {
+        Entry entry = pending.remove(reqId);
+        if (entry == null) {
+            return;
+        }
+        Entries entries = byBuf.get(entry.bufId);
+        while (!entries.entries.isEmpty()) {
+            Entry e = entries.entries.removeFirst();
+            entries.chars -= e.chars;
+            pending.remove(e.reqId);
+            if (e == entry) {
+                break;
+            }
+        }
+        if (entries.entries.isEmpty()) {
+            byBuf.remove(entry.bufId);
+        }
+    }
+
+    public synchronized void forget(int bufId) {
+        offline.remove(bufId);
+        Entries entries = byBuf.remove(bufId);
+        if (entries == null) {
+            return;
+        }
+        for (Entry e : entries.entries) {
+            pending.remove(e.reqId);
+        }
+    }
+
+    /**
+     * @return a text we sent for this buffer that hashes to md5, or null if the server is somewhere we've never been.
+     */
+    public synchronized String find(int bufId, String md5) {
+        if (md5 == null) {
+            return null;
+        }
+        Base base = offline.get(bufId);
+        if (base != null && md5.equals(base.md5)) {
+            return base.text;
+        }
+        Entries entries = byBuf.get(bufId);
+        if (entries == null) {
+            return null;
+        }
+        // Newest first: the server most likely got everything but the last few.
+        String text = null;
+        Iterator<Entry> iterator = entries.entries.descendingIterator();
+        while (iterator.hasNext()) {
+            Entry e = iterator.next();
+            if (e.afterText != null) {
+                text = e.afterText;
+            }
+            if (text == null) {
+                continue;
+            }
+            if (md5.equals(e.afterMd5)) {
+                return checked(text, md5);
+            }
+            text = undo(text, e.patch);
+            if (text == null) {
+                Flog.warn("Can't undo patch %s for buf %s.", e.reqId, bufId);
+            } else if (md5.equals(e.beforeMd5)) {
+                return checked(text, md5);
+            }
+        }
+        return null;
+    }
+
+    private static String checked(String text, String md5) {
+        if (md5.equals(Hashing.md5Hex(text))) {
+            return text;
+        }
+        Flog.warn("Rebuilt text doesn't match md5 %s.", md5);
+        return null;
+    }
+
+    /**
+     * Turns the text a patch_make patch produced back into the text it was made from. Undoing from the last patch,
+     * every patch's start2 is still where its result sits in text.
+     * @return null if text doesn't hold what the patch produced.
+     */
+    static String undo(String text, String patch) {
+        List<diff_match_patch.Patch> patches;
+        try {
+            patches = dmp.patch_fromText(patch);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(text);
+        ListIterator<diff_match_patch.Patch> iterator = patches.listIterator(patches.size());
+        while (iterator.hasPrevious()) {
+            diff_match_patch.Patch p = iterator.previous();
+            String before = dmp.diff_text1(p.diffs);
+            String after = dmp.diff_text2(p.diffs);
+            int end = p.start2 + after.length();
+            if (p.start2 < 0 || end > sb.length() || !sb.substring(p.start2, end).equals(after)) {
+                return null;
+            }
+            sb.replace(p.start2, end, before);
+        }
+        return sb.toString();
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public synchronized void clear() {
+        pending.clear();
+        byBuf.clear();
+        offline.clear();
+    }
+
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(pending.size()).append(" unacked patches, ").append(offline.size()).append(" buffers edited offline");
+        for (Map.Entry<Integer, Entries> entry : byBuf.entrySet()) {
+            sb.append(String.format("\n  buf %s: %d, %d chars", entry.getKey(), entry.getValue().entries.size(),
+                    entry.getValue().chars));
+        }
+        return sb.toString();
+    }
+}
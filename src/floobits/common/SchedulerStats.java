@@ -0,0 +1,68 @@
+package floobits.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How long EditorScheduler holds the write action and how much work is waiting for it.
+ */
+public class SchedulerStats {
+    public final AtomicLong slices = new AtomicLong();
+    public final AtomicLong actions = new AtomicLong();
+    public final AtomicLong sliceNanos = new AtomicLong();
+    // Slices that ran past EditorScheduler.sliceMillis because a single action did.
+    public final AtomicLong overBudgetSlices = new AtomicLong();
+    // Actions dropped because a newer one made them pointless.
+    public final AtomicLong superseded = new AtomicLong();
+    private volatile long maxSliceNanos;
+    private volatile int backlog;
+    private volatile int maxBacklog;
+
+    void recordSlice(long nanos, int count, int left) {
+        slices.incrementAndGet();
+        actions.addAndGet(count);
+        sliceNanos.addAndGet(nanos);
+        if (nanos > EditorScheduler.sliceMillis * 1000000L) {
+            overBudgetSlices.incrementAndGet();
+        }
+        // Only the UI thread records slices.
+        if (nanos > maxSliceNanos) {
+            maxSliceNanos = nanos;
+        }
+        backlog = left;
+    }
+
+    /**
+     * Only the UI thread records the backlog, as it moves queued actions into their lanes.
+     */
+    void recordBacklog(int backlog) {
+        this.backlog = backlog;
+        if (backlog > maxBacklog) {
+            maxBacklog = backlog;
+        }
+    }
+
+    /**
+     * @return actions waiting as of the last slice.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getMaxBacklog() {
+        return maxBacklog;
+    }
+
+    public long getMaxSliceMillis() {
+        return maxSliceNanos / 1000000;
+    }
+
+    public String toString() {
+        long count = slices.get();
+        if (count == 0) {
+            return "no editor slices";
+        }
+        return String.format("%d editor slices averaging %.1fms (max %dms, %d over budget) for %d actions, " +
+                        "%d superseded, backlog %d (max %d)", count, sliceNanos.get() / (double) count / 1e6,
+                getMaxSliceMillis(), overBudgetSlices.get(), actions.get(), superseded.get(), backlog, maxBacklog);
+    }
+}
@@ -28,6 +28,7 @@ import static com.intellij.util.net.ssl.ConfirmingTrustManager.*;
 
 public class Utils {
     private static int requestId = 0;
+    private static SSLContext sslContext;
 
     public static int getRequestId() {
         requestId += 1;
@@ -226,6 +227,20 @@ public class Utils {
         T call(IFile file);
     }
 
+    /**
+     * Building the trust manager from the embedded certificate is expensive, and only a shared SSLContext can resume
+     * TLS sessions, so every connection uses this one.
+     */
+    static public synchronized SSLContext getSSLContext() {
+        if (sslContext == null) {
+            sslContext = createSSLContext();
+            if (sslContext != null) {
+                sslContext.getClientSessionContext().setSessionTimeout(24 * 60 * 60);
+            }
+        }
+        return sslContext;
+    }
+
     static public SSLContext createSSLContext() {
         X509TrustManager FloobitsSSLTrustManager = new X509TrustManager() {
             public X509Certificate[] getAcceptedIssuers() {return null;}
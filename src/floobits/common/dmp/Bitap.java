@@ -0,0 +1,306 @@
+package floobits.common.dmp;
+
+/**
+ * The bitap fuzzy matcher behind diff_match_patch.match_main, on primitive masks. Patterns up to 64 chars use one long
+ * per position; longer ones use as many longs as they need. Gives the same answers as the original int version for
+ * patterns that fit in 32 bits.
+ */
+public class Bitap {
+    private static final int ASCII = 128;
+
+    /**
+     * Pattern char -> bit mask, words longs per char. ASCII is a direct lookup, anything else goes through a small open
+     * addressed table since a pattern only has a handful of distinct chars.
+     */
+    private static class Alphabet {
+        final int words;
+        final long[] ascii;
+        final char[] keys;
+        final boolean[] used;
+        final long[] masks;
+        final int tableMask;
+
+        Alphabet(String pattern, int words) {
+            this.words = words;
+            ascii = new long[ASCII * words];
+            int capacity = 4;
+            while (capacity < pattern.length() * 2) {
+                capacity <<= 1;
+            }
+            keys = new char[capacity];
+            used = new boolean[capacity];
+            masks = new long[capacity * words];
+            tableMask = capacity - 1;
+
+            int length = pattern.length();
+            for (int i = 0; i < length; i++) {
+                char c = pattern.charAt(i);
+                int bit = length - i - 1;
+                if (c < ASCII) {
+                    ascii[c * words + (bit >>> 6)] |= 1L << bit;
+                    continue;
+                }
+                int slot = slot(c);
+                if (!used[slot]) {
+                    used[slot] = true;
+                    keys[slot] = c;
+                }
+                masks[slot * words + (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        private int slot(char c) {
+            int slot = (c * 0x9E37) & tableMask;
+            while (used[slot] && keys[slot] != c) {
+                slot = (slot + 1) & tableMask;
+            }
+            return slot;
+        }
+
+        long single(char c) {
+            if (c < ASCII) {
+                return ascii[c];
+            }
+            int slot = slot(c);
+            return used[slot] ? masks[slot] : 0;
+        }
+
+        /**
+         * @return offset of c's mask in the returned array, or -1 if c isn't in the pattern.
+         */
+        int offset(char c) {
+            if (c < ASCII) {
+                return c * words;
+            }
+            int slot = slot(c);
+            return used[slot] ? slot * words : -1;
+        }
+
+        long[] table(char c) {
+            return c < ASCII ? ascii : masks;
+        }
+    }
+
+    private static double score(int e, int x, int loc, int patternLength, int distance) {
+        float accuracy = (float) e / patternLength;
+        int proximity = Math.abs(loc - x);
+        if (distance == 0) {
+            // Dodge divide by zero error.
+            return proximity == 0 ? accuracy : 1.0;
+        }
+        return accuracy + (proximity / (float) distance);
+    }
+
+    private static int indexOf(CharSequence text, String pattern, int from) {
+        if (text instanceof String) {
+            return ((String) text).indexOf(pattern, from);
+        }
+        if (text instanceof StringBuilder) {
+            return ((StringBuilder) text).indexOf(pattern, from);
+        }
+        return text.toString().indexOf(pattern, from);
+    }
+
+    private static int lastIndexOf(CharSequence text, String pattern, int from) {
+        if (text instanceof String) {
+            return ((String) text).lastIndexOf(pattern, from);
+        }
+        if (text instanceof StringBuilder) {
+            return ((StringBuilder) text).lastIndexOf(pattern, from);
+        }
+        return text.toString().lastIndexOf(pattern, from);
+    }
+
+    /**
+     * Score of the closest exact match on either side of loc, or threshold if that's lower or there is none.
+     */
+    private static double exactThreshold(CharSequence text, String pattern, int loc, double threshold, int distance) {
+        int best_loc = indexOf(text, pattern, loc);
+        if (best_loc != -1) {
+            threshold = Math.min(score(0, best_loc, loc, pattern.length(), distance), threshold);
+            best_loc = lastIndexOf(text, pattern, loc + pattern.length());
+            if (best_loc != -1) {
+                threshold = Math.min(score(0, best_loc, loc, pattern.length(), distance), threshold);
+            }
+        }
+        return threshold;
+    }
+
+    /**
+     * First index an error level's bit vectors need. The original sizes them from 0, which deep into a big file is
+     * most of the file for a scan only a couple of thousand chars wide. A match past loc can pull start back to
+     * 2 * loc - best_loc, and later levels only ever scan inside this one's range.
+     */
+    private static int low(int start, int loc, int finish) {
+        return Math.max(0, Math.min(start, 2 * loc - finish));
+    }
+
+    /**
+     * Locate the best instance of pattern in text near loc.
+     * @return Best match index or -1.
+     */
+    public static int match(CharSequence text, String pattern, int loc, float threshold, int distance) {
+        if (pattern.length() <= 64) {
+            return matchSingle(text, pattern, loc, threshold, distance);
+        }
+        return matchMulti(text, pattern, loc, threshold, distance);
+    }
+
+    static int matchSingle(CharSequence text, String pattern, int loc, float threshold, int distance) {
+        int m = pattern.length();
+        Alphabet s = new Alphabet(pattern, 1);
+        double score_threshold = exactThreshold(text, pattern, loc, threshold, distance);
+
+        long matchmask = 1L << (m - 1);
+        int best_loc = -1;
+        int textLength = text.length();
+
+        int bin_min, bin_mid;
+        int bin_max = m + textLength;
+        long[] last_rd = new long[0];
+        int last_lo = 0;
+        for (int d = 0; d < m; d++) {
+            // Run a binary search to determine how far from loc we can stray at this error level.
+            bin_min = 0;
+            bin_mid = bin_max;
+            while (bin_min < bin_mid) {
+                if (score(d, loc + bin_mid, loc, m, distance) <= score_threshold) {
+                    bin_min = bin_mid;
+                } else {
+                    bin_max = bin_mid;
+                }
+                bin_mid = (bin_max - bin_min) / 2 + bin_min;
+            }
+            bin_max = bin_mid;
+            int start = Math.max(1, loc - bin_mid + 1);
+            int finish = Math.min(loc + bin_mid, textLength) + m;
+
+            int lo = low(start, loc, finish);
+            long[] rd = new long[finish + 2 - lo];
+            rd[finish + 1 - lo] = (1L << d) - 1;
+            for (int j = finish; j >= start; j--) {
+                long charMatch = textLength <= j - 1 ? 0 : s.single(text.charAt(j - 1));
+                int i = j - lo;
+                if (d == 0) {
+                    // First pass: exact match.
+                    rd[i] = ((rd[i + 1] << 1) | 1) & charMatch;
+                } else {
+                    // Subsequent passes: fuzzy match.
+                    int k = j - last_lo;
+                    rd[i] = (((rd[i + 1] << 1) | 1) & charMatch)
+                            | (((last_rd[k + 1] | last_rd[k]) << 1) | 1) | last_rd[k + 1];
+                }
+                if ((rd[i] & matchmask) != 0) {
+                    double score = score(d, j - 1, loc, m, distance);
+                    if (score <= score_threshold) {
+                        score_threshold = score;
+                        best_loc = j - 1;
+                        if (best_loc > loc) {
+                            // When passing loc, don't exceed our current distance from loc.
+                            start = Math.max(1, 2 * loc - best_loc);
+                        } else {
+                            // Already passed loc, downhill from here on in.
+                            break;
+                        }
+                    }
+                }
+            }
+            if (score(d + 1, loc, loc, m, distance) > score_threshold) {
+                // No hope for a (better) match at greater error levels.
+                break;
+            }
+            last_rd = rd;
+            last_lo = lo;
+        }
+        return best_loc;
+    }
+
+    /**
+     * Same as matchSingle with each bit vector spread over words longs, lowest word first.
+     */
+    public static int matchMulti(CharSequence text, String pattern, int loc, float threshold, int distance) {
+        int m = pattern.length();
+        int words = (m + 63) >>> 6;
+        Alphabet s = new Alphabet(pattern, words);
+        double score_threshold = exactThreshold(text, pattern, loc, threshold, distance);
+
+        int maskWord = (m - 1) >>> 6;
+        long matchmask = 1L << ((m - 1) & 63);
+        int best_loc = -1;
+        int textLength = text.length();
+
+        int bin_min, bin_mid;
+        int bin_max = m + textLength;
+        long[] last_rd = new long[0];
+        int last_lo = 0;
+        for (int d = 0; d < m; d++) {
+            bin_min = 0;
+            bin_mid = bin_max;
+            while (bin_min < bin_mid) {
+                if (score(d, loc + bin_mid, loc, m, distance) <= score_threshold) {
+                    bin_min = bin_mid;
+                } else {
+                    bin_max = bin_mid;
+                }
+                bin_mid = (bin_max - bin_min) / 2 + bin_min;
+            }
+            bin_max = bin_mid;
+            int start = Math.max(1, loc - bin_mid + 1);
+            int finish = Math.min(loc + bin_mid, textLength) + m;
+
+            int lo = low(start, loc, finish);
+            long[] rd = new long[(finish + 2 - lo) * words];
+            // Low d bits set.
+            int top = (finish + 1 - lo) * words;
+            for (int w = 0; w < words; w++) {
+                int bits = d - w * 64;
+                rd[top + w] = bits >= 64 ? -1L : bits <= 0 ? 0 : (1L << bits) - 1;
+            }
+            for (int j = finish; j >= start; j--) {
+                long[] table = null;
+                int charOffset = -1;
+                if (textLength > j - 1) {
+                    char c = text.charAt(j - 1);
+                    charOffset = s.offset(c);
+                    table = s.table(c);
+                }
+                int here = (j - lo) * words;
+                int next = here + words;
+                int lastHere = (j - last_lo) * words;
+                int lastNext = lastHere + words;
+                long carry = 1;
+                long lastCarry = 1;
+                for (int w = 0; w < words; w++) {
+                    long charMatch = charOffset < 0 ? 0 : table[charOffset + w];
+                    long shifted = (rd[next + w] << 1) | carry;
+                    carry = rd[next + w] >>> 63;
+                    long value = shifted & charMatch;
+                    if (d != 0) {
+                        long either = last_rd[lastNext + w] | last_rd[lastHere + w];
+                        value |= ((either << 1) | lastCarry) | last_rd[lastNext + w];
+                        lastCarry = either >>> 63;
+                    }
+                    rd[here + w] = value;
+                }
+                if ((rd[here + maskWord] & matchmask) != 0) {
+                    double score = score(d, j - 1, loc, m, distance);
+                    if (score <= score_threshold) {
+                        score_threshold = score;
+                        best_loc = j - 1;
+                        if (best_loc > loc) {
+                            start = Math.max(1, 2 * loc - best_loc);
+                        } else {
+                            break;
+                        }
+                    }
+                }
+            }
+            if (score(d + 1, loc, loc, m, distance) > score_threshold) {
+                break;
+            }
+            last_rd = rd;
+            last_lo = lo;
+        }
+        return best_loc;
+    }
+}
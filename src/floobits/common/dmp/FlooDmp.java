@@ -1,12 +1,567 @@
 package floobits.common.dmp;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class FlooDmp extends diff_match_patch {
+    // Threads diff_patience spreads gaps over.
+    public static int diffThreads = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService diffPool;
 
+    private static synchronized ExecutorService diffPool() {
+        if (diffPool == null) {
+            diffPool = Executors.newFixedThreadPool(Math.max(1, diffThreads), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Floobits diff");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return diffPool;
+    }
+
+    /**
+     * Builds the patch for a single replace of oldFragment at offset in text1, the way an editor reports a change.
+     * Only the fragments are diffed and context is only looked for near offset, so the cost doesn't grow with the
+     * document.
+     * @param text1 Text before the change.
+     * @return LinkedList of Patch objects that turn text1 into the changed text.
+     */
+    public LinkedList<Patch> patch_make(String text1, int offset, String oldFragment, String newFragment) {
+        if (text1 == null || oldFragment == null || newFragment == null) {
+            throw new IllegalArgumentException("Null inputs. (patch_make)");
+        }
+        LinkedList<Patch> patches = new LinkedList<Patch>();
+        int prefix = diff_commonPrefix(oldFragment, newFragment);
+        // Don't split a surrogate pair, patch_toText can't encode half of one.
+        if (prefix > 0 && Character.isHighSurrogate(oldFragment.charAt(prefix - 1))) {
+            prefix--;
+        }
+        String oldRest = oldFragment.substring(prefix);
+        String newRest = newFragment.substring(prefix);
+        int suffix = diff_commonSuffix(oldRest, newRest);
+        if (suffix > 0 && Character.isLowSurrogate(oldRest.charAt(oldRest.length() - suffix))) {
+            suffix--;
+        }
+        String deleted = oldRest.substring(0, oldRest.length() - suffix);
+        String inserted = newRest.substring(0, newRest.length() - suffix);
+        if (deleted.length() == 0 && inserted.length() == 0) {
+            return patches;
+        }
+
+        LinkedList<Diff> diffs;
+        if (deleted.length() == 0) {
+            diffs = new LinkedList<Diff>();
+            diffs.add(new Diff(Operation.INSERT, inserted));
+        } else if (inserted.length() == 0) {
+            diffs = new LinkedList<Diff>();
+            diffs.add(new Diff(Operation.DELETE, deleted));
+        } else {
+            diffs = diff_main(deleted, inserted, false);
+            if (diffs.size() > 2) {
+                diff_cleanupSemantic(diffs);
+                diff_cleanupEfficiency(diffs);
+            }
+            if (splitsSurrogatePair(diffs)) {
+                // Astral chars that share a high surrogate diff as half a pair each.
+                diffs = new LinkedList<Diff>();
+                diffs.add(new Diff(Operation.DELETE, deleted));
+                diffs.add(new Diff(Operation.INSERT, inserted));
+            }
+        }
+
+        Patch patch = new Patch();
+        patch.start1 = offset + prefix;
+        patch.start2 = offset + prefix;
+        for (Diff aDiff : diffs) {
+            patch.diffs.add(aDiff);
+            if (aDiff.operation != Operation.INSERT) {
+                patch.length1 += aDiff.text.length();
+            }
+            if (aDiff.operation != Operation.DELETE) {
+                patch.length2 += aDiff.text.length();
+            }
+        }
+        patch_addContextNear(patch, text1);
+        patches.add(patch);
+        return patches;
+    }
+
+    /**
+     * diff_match_patch.patch_addContext, but the pattern only has to be unique within Match_Distance of the patch.
+     * Bitap scores a copy further away than that past Match_Threshold, so it can't be matched instead.
+     */
+    private void patch_addContextNear(Patch patch, String text) {
+        if (text.length() == 0) {
+            return;
+        }
+        int reach = Match_Distance + Match_MaxBits;
+        int from = Math.max(0, patch.start2 - reach);
+        String near = text.substring(from, Math.min(text.length(), patch.start2 + patch.length1 + reach));
+        int start = patch.start2 - from;
+        String pattern = near.substring(start, start + patch.length1);
+        int padding = 0;
+
+        while (near.indexOf(pattern) != near.lastIndexOf(pattern)
+                && pattern.length() < Match_MaxBits - Patch_Margin - Patch_Margin) {
+            padding += Patch_Margin;
+            pattern = near.substring(Math.max(0, start - padding),
+                    Math.min(near.length(), start + patch.length1 + padding));
+        }
+        // Add one chunk for good luck.
+        padding += Patch_Margin;
+
+        String prefix = near.substring(Math.max(0, start - padding), start);
+        if (prefix.length() != 0) {
+            patch.diffs.addFirst(new Diff(Operation.EQUAL, prefix));
+        }
+        String suffix = near.substring(start + patch.length1,
+                Math.min(near.length(), start + patch.length1 + padding));
+        if (suffix.length() != 0) {
+            patch.diffs.addLast(new Diff(Operation.EQUAL, suffix));
+        }
+
+        patch.start1 -= prefix.length();
+        patch.start2 -= prefix.length();
+        patch.length1 += prefix.length() + suffix.length();
+        patch.length2 += prefix.length() + suffix.length();
+    }
+
+    private static boolean splitsSurrogatePair(LinkedList<Diff> diffs) {
+        for (Diff aDiff : diffs) {
+            String text = aDiff.text;
+            if (Character.isLowSurrogate(text.charAt(0)) || Character.isHighSurrogate(text.charAt(text.length() - 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * text2[0, headEnd) followed by text1[tailStart, ...), which is what patch_make has turned text1 into so far.
+     * Lets patch_make look for context in that text without rebuilding it for every diff.
+     */
+    private static class Spliced {
+        final String head;
+        final int headEnd;
+        final String tail;
+        final int tailStart;
+        final int length;
+
+        Spliced(String head, int headEnd, String tail, int tailStart) {
+            this.head = head;
+            this.headEnd = headEnd;
+            this.tail = tail;
+            this.tailStart = tailStart;
+            length = headEnd + tail.length() - tailStart;
+        }
+
+        String substring(int from, int to) {
+            if (to <= headEnd) {
+                return head.substring(from, to);
+            }
+            if (from >= headEnd) {
+                return tail.substring(tailStart + from - headEnd, tailStart + to - headEnd);
+            }
+            return head.substring(from, headEnd) + tail.substring(tailStart, tailStart + to - headEnd);
+        }
+
+        boolean regionMatches(int offset, String pattern) {
+            if (offset < 0 || offset + pattern.length() > length) {
+                return false;
+            }
+            for (int i = 0; i < pattern.length(); i++) {
+                int at = offset + i;
+                char c = at < headEnd ? head.charAt(at) : tail.charAt(tailStart + at - headEnd);
+                if (c != pattern.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int indexOf(String pattern, int from) {
+            int length = pattern.length();
+            if (from < headEnd) {
+                int i = head.indexOf(pattern, from);
+                if (i != -1 && i + length <= headEnd) {
+                    return i;
+                }
+                // Matches starting this close to the join run into the tail.
+                int straddle = Math.max(from, headEnd - length + 1);
+                if (straddle < headEnd) {
+                    i = substring(straddle, Math.min(this.length, headEnd + length - 1)).indexOf(pattern);
+                    if (i != -1) {
+                        return straddle + i;
+                    }
+                }
+                from = headEnd;
+            }
+            int i = tail.indexOf(pattern, tailStart + from - headEnd);
+            return i == -1 ? -1 : headEnd + i - tailStart;
+        }
+
+        /**
+         * @return somewhere pattern occurs other than at skip, or -1.
+         */
+        int indexOfOther(String pattern, int skip) {
+            int i = indexOf(pattern, 0);
+            return i != skip ? i : indexOf(pattern, skip + 1);
+        }
+    }
+
+    /**
+     * Same patches as diff_match_patch.patch_make, which rebuilds the whole patched text with substrings for every
+     * diff. That's quadratic in practice for big files with many changes; here the patched text so far is a Spliced
+     * view of text1 and text2.
+     */
+    @Override
+    public LinkedList<Patch> patch_make(String text1, LinkedList<Diff> diffs) {
+        if (text1 == null || diffs == null) {
+            throw new IllegalArgumentException("Null inputs. (patch_make)");
+        }
+
+        LinkedList<Patch> patches = new LinkedList<Patch>();
+        if (diffs.isEmpty()) {
+            return patches;  // Get rid of the null case.
+        }
+        String text2 = diff_text2(diffs);
+        Patch patch = new Patch();
+        int char_count1 = 0;  // Number of characters into the text1 string.
+        int char_count2 = 0;  // Number of characters into the text2 string.
+        // The text the next patch applies to is text2 up to prepatch2, then text1 from prepatch1. char_count1 counts
+        // into that text, offset1 into text1 itself.
+        int offset1 = 0;
+        int prepatch1 = 0;
+        int prepatch2 = 0;
+        Diff last = diffs.getLast();
+        for (Diff aDiff : diffs) {
+            if (patch.diffs.isEmpty() && aDiff.operation != Operation.EQUAL) {
+                // A new patch starts here.
+                patch.start1 = char_count1;
+                patch.start2 = char_count2;
+            }
+
+            switch (aDiff.operation) {
+                case INSERT:
+                    patch.diffs.add(aDiff);
+                    patch.length2 += aDiff.text.length();
+                    break;
+                case DELETE:
+                    patch.length1 += aDiff.text.length();
+                    patch.diffs.add(aDiff);
+                    break;
+                case EQUAL:
+                    if (aDiff.text.length() <= 2 * Patch_Margin && !patch.diffs.isEmpty() && aDiff != last) {
+                        // Small equality inside a patch.
+                        patch.diffs.add(aDiff);
+                        patch.length1 += aDiff.text.length();
+                        patch.length2 += aDiff.text.length();
+                    }
+
+                    if (aDiff.text.length() >= 2 * Patch_Margin) {
+                        // Time for a new patch.
+                        if (!patch.diffs.isEmpty()) {
+                            patch_addContext(patch, new Spliced(text2, prepatch2, text1, prepatch1));
+                            patches.add(patch);
+                            patch = new Patch();
+                            // Unlike Unidiff, our patch lists have a rolling context.
+                            // http://code.google.com/p/google-diff-match-patch/wiki/Unidiff
+                            prepatch1 = offset1;
+                            prepatch2 = char_count2;
+                            char_count1 = char_count2;
+                        }
+                    }
+                    break;
+            }
+
+            // Update the current character count.
+            if (aDiff.operation != Operation.INSERT) {
+                char_count1 += aDiff.text.length();
+                offset1 += aDiff.text.length();
+            }
+            if (aDiff.operation != Operation.DELETE) {
+                char_count2 += aDiff.text.length();
+            }
+        }
+        // Pick up the leftover patch if not empty.
+        if (!patch.diffs.isEmpty()) {
+            patch_addContext(patch, new Spliced(text2, prepatch2, text1, prepatch1));
+            patches.add(patch);
+        }
+
+        return patches;
+    }
+
+    /**
+     * diff_match_patch.patch_addContext on a Spliced text.
+     */
+    private void patch_addContext(Patch patch, Spliced text) {
+        if (text.length == 0) {
+            return;
+        }
+        String pattern = text.substring(patch.start2, patch.start2 + patch.length1);
+        int patternStart = patch.start2;
+        int padding = 0;
+
+        // Grow the pattern until it only occurs once. diff_match_patch compares indexOf and lastIndexOf, two scans
+        // of the whole text per size. Finding one other occurrence is enough, and usually that's close by or still
+        // matches after the pattern grows.
+        int other = -1;
+        while (pattern.length() < Match_MaxBits - Patch_Margin - Patch_Margin) {
+            if (!text.regionMatches(other, pattern)) {
+                other = text.indexOfOther(pattern, patternStart);
+                if (other == -1) {
+                    break;
+                }
+            }
+            padding += Patch_Margin;
+            int start = Math.max(0, patch.start2 - padding);
+            pattern = text.substring(start, Math.min(text.length, patch.start2 + patch.length1 + padding));
+            other -= patternStart - start;
+            patternStart = start;
+        }
+        // Add one chunk for good luck.
+        padding += Patch_Margin;
+
+        // Add the prefix.
+        String prefix = text.substring(Math.max(0, patch.start2 - padding), patch.start2);
+        if (prefix.length() != 0) {
+            patch.diffs.addFirst(new Diff(Operation.EQUAL, prefix));
+        }
+        // Add the suffix.
+        String suffix = text.substring(patch.start2 + patch.length1,
+                Math.min(text.length, patch.start2 + patch.length1 + padding));
+        if (suffix.length() != 0) {
+            patch.diffs.addLast(new Diff(Operation.EQUAL, suffix));
+        }
+
+        // Roll back the start points.
+        patch.start1 -= prefix.length();
+        patch.start2 -= prefix.length();
+        // Extend the lengths.
+        patch.length1 += prefix.length() + suffix.length();
+        patch.length2 += prefix.length() + suffix.length();
+    }
+
+    /**
+     * patch_make for big texts, see diff_lines.
+     */
+    public LinkedList<Patch> patch_make_lines(String text1, String text2) {
+        if (text1 == null || text2 == null) {
+            throw new IllegalArgumentException("Null inputs. (patch_make)");
+        }
+        return patch_make_cleaned(text1, diff_lines(text1, text2));
+    }
+
+    /**
+     * patch_make for huge texts, see diff_patience.
+     */
+    public LinkedList<Patch> patch_make_patience(String text1, String text2) {
+        if (text1 == null || text2 == null) {
+            throw new IllegalArgumentException("Null inputs. (patch_make)");
+        }
+        return patch_make_cleaned(text1, diff_patience(text1, text2));
+    }
+
+    private LinkedList<Patch> patch_make_cleaned(String text1, LinkedList<Diff> diffs) {
+        if (diffs.size() > 2) {
+            diff_cleanupSemantic(diffs);
+            diff_cleanupEfficiency(diffs);
+        }
+        return patch_make(text1, diffs);
+    }
+
+    private long deadline() {
+        return Diff_Timeout <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
+    }
+
+    /**
+     * Diffs whole lines first (LineDiff), then characters only inside the regions where lines were replaced, all
+     * under one Diff_Timeout. diff_main's own line mode works the same way but builds a String per distinct line, tops
+     * out at 65k of them, and tends to spend its deadline in the character bisect on big files.
+     * @return Linked List of Diff objects.
+     */
+    public LinkedList<Diff> diff_lines(String text1, String text2) {
+        if (text1 == null || text2 == null) {
+            throw new IllegalArgumentException("Null inputs. (diff_lines)");
+        }
+        long deadline = deadline();
+        LineDiff.Lines[] lines = LineDiff.tokenize(text1, text2);
+        LineDiff.Lines a = lines[0];
+        LineDiff.Lines b = lines[1];
+        LineDiff.Edits edits = LineDiff.diff(a.tokens, 0, a.size(), b.tokens, 0, b.size(), deadline);
+        LinkedList<Diff> diffs = diff_fromLines(a, b, 0, 0, edits, deadline);
+        diff_cleanupMerge(diffs);
+        return diffs;
+    }
+
+    /**
+     * Patience diff for huge texts. Lines that occur once in each text and in the same order (LineDiff.anchors) are
+     * kept as they are, and the gaps between them are diffed like diff_lines, in batches on diffPool. The result can
+     * be less minimal than diff_lines when a gap's best alignment crosses an anchor, which for real files is rare.
+     * @return Linked List of Diff objects.
+     */
+    public LinkedList<Diff> diff_patience(String text1, String text2) {
+        if (text1 == null || text2 == null) {
+            throw new IllegalArgumentException("Null inputs. (diff_patience)");
+        }
+        final long deadline = deadline();
+        LineDiff.Lines[] lines = LineDiff.tokenize(text1, text2);
+        final LineDiff.Lines a = lines[0];
+        final LineDiff.Lines b = lines[1];
+        final int[] anchors = LineDiff.anchors(a.tokens, b.tokens);
+        int gaps = anchors.length / 2 + 1;
+        int batches = Math.min(gaps, diffThreads * 4);
+        if (batches <= 1) {
+            return diff_lines(text1, text2);
+        }
+
+        // Cut the gaps into batches of about the same number of lines. Batch k is gaps [cuts[k], cuts[k + 1]),
+        // with the anchor after each gap but the last.
+        int[] cuts = new int[batches + 1];
+        long total = a.size() + b.size();
+        long done = 0;
+        int batch = 1;
+        for (int g = 0; g < gaps && batch < batches; g++) {
+            done += gapEnd(anchors, g, 0, a.size()) - gapStart(anchors, g, 0)
+                    + gapEnd(anchors, g, 1, b.size()) - gapStart(anchors, g, 1);
+            if (done * batches >= total * batch) {
+                cuts[batch++] = g + 1;
+            }
+        }
+        while (batch <= batches) {
+            cuts[batch++] = gaps;
+        }
+
+        List<Future<LinkedList<Diff>>> results = new ArrayList<Future<LinkedList<Diff>>>();
+        for (int k = 0; k < batches; k++) {
+            final int from = cuts[k];
+            final int to = cuts[k + 1];
+            if (from == to) {
+                continue;
+            }
+            results.add(diffPool().submit(new Callable<LinkedList<Diff>>() {
+                @Override
+                public LinkedList<Diff> call() {
+                    LineDiff.Edits edits = new LineDiff.Edits();
+                    for (int g = from; g < to; g++) {
+                        edits.addAll(LineDiff.diff(a.tokens, gapStart(anchors, g, 0), gapEnd(anchors, g, 0, a.size()),
+                                b.tokens, gapStart(anchors, g, 1), gapEnd(anchors, g, 1, b.size()), deadline));
+                        if (g < anchors.length / 2) {
+                            edits.add(LineDiff.EQUAL, 1);
+                        }
+                    }
+                    return diff_fromLines(a, b, gapStart(anchors, from, 0), gapStart(anchors, from, 1), edits,
+                            deadline);
+                }
+            }));
+        }
+        LinkedList<Diff> diffs = new LinkedList<Diff>();
+        try {
+            for (Future<LinkedList<Diff>> result : results) {
+                diffs.addAll(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        diff_cleanupMerge(diffs);
+        return diffs;
+    }
+
+    /**
+     * First line of gap g in text side (0 for a, 1 for b): just after anchor g - 1, or 0 for the first gap.
+     */
+    private static int gapStart(int[] anchors, int g, int side) {
+        return g == 0 ? 0 : anchors[2 * (g - 1) + side] + 1;
+    }
+
+    /**
+     * End of gap g in text side: anchor g, or the end of the text for the last gap.
+     */
+    private static int gapEnd(int[] anchors, int g, int side, int size) {
+        return g == anchors.length / 2 ? size : anchors[2 * g + side];
+    }
+
+    /**
+     * Turns line edits starting at line x of a and y of b into Diffs. Each run of deleted and inserted lines between
+     * two equalities is rediffed by character.
+     */
+    protected LinkedList<Diff> diff_fromLines(LineDiff.Lines a, LineDiff.Lines b, int x, int y, LineDiff.Edits edits,
+                                              long deadline) {
+        LinkedList<Diff> diffs = new LinkedList<Diff>();
+        int deleted = 0;
+        int inserted = 0;
+        for (int i = 0; i <= edits.size(); i++) {
+            int op = i < edits.size() ? edits.op(i) : LineDiff.EQUAL;
+            int count = i < edits.size() ? edits.count(i) : 0;
+            if (op == LineDiff.DELETE) {
+                deleted += count;
+                continue;
+            }
+            if (op == LineDiff.INSERT) {
+                inserted += count;
+                continue;
+            }
+            if (deleted > 0 && inserted > 0) {
+                diffs.addAll(diff_main(a.substring(x, x + deleted), b.substring(y, y + inserted), false, deadline));
+            } else if (deleted > 0) {
+                diffs.add(new Diff(Operation.DELETE, a.substring(x, x + deleted)));
+            } else if (inserted > 0) {
+                diffs.add(new Diff(Operation.INSERT, b.substring(y, y + inserted)));
+            }
+            x += deleted;
+            y += inserted;
+            deleted = 0;
+            inserted = 0;
+            if (count > 0) {
+                diffs.add(new Diff(Operation.EQUAL, a.substring(x, x + count)));
+                x += count;
+                y += count;
+            }
+        }
+        return diffs;
+    }
+
+    /**
+     * Same text as diff_match_patch.patch_toText, see PatchCodec.
+     */
+    @Override
+    public String patch_toText(List<Patch> patches) {
+        return PatchCodec.toText(patches);
+    }
+
+    /**
+     * Same patches as diff_match_patch.patch_fromText, see PatchCodec.
+     * @throws IllegalArgumentException If invalid input.
+     */
+    @Override
+    public List<Patch> patch_fromText(String textline) throws IllegalArgumentException {
+        return PatchCodec.fromText(textline);
+    }
+
+    /**
+     * Like diff_match_patch.patch_apply, but also returns where each patch landed. The text is edited in place in a
+     * StringBuilder, so each change moves the tail of the text instead of copying all of it twice.
+     * A patch that only matched fuzzily gets one position spanning its changes, which doesn't reproduce them exactly.
+     * @return Object[]{patched text, boolean[] applied, FlooPatchPosition[] positions, Boolean exact}, where exact
+     * says every patch matched its text exactly, so the positions turn text into the patched text.
+     */
     public Object[] patch_apply(LinkedList<Patch> patches, String text) {
         if (patches.isEmpty()) {
-            return new Object[]{text, new boolean[0]};
+            return new Object[]{text, new boolean[0], new FlooPatchPosition[0], true};
         }
 
         // Deep copy the patches so that no changes are made to originals.
@@ -14,7 +569,8 @@ public class FlooDmp extends diff_match_patch {
 
         String nullPadding = patch_addPadding(patches);
         final int np_len = nullPadding.length();
-        text = nullPadding + text + nullPadding;
+        StringBuilder buffer = new StringBuilder(text.length() + 2 * np_len + 16);
+        buffer.append(nullPadding).append(text).append(nullPadding);
         patch_splitMax(patches);
 
         int x = 0;
@@ -25,6 +581,7 @@ public class FlooDmp extends diff_match_patch {
         int delta = 0;
         boolean[] results = new boolean[patches.size()];
         Object[] positions = new FlooPatchPosition[patches.size()];
+        boolean exact = true;
 
         for (Patch aPatch : patches) {
             FlooPatchPosition position = new FlooPatchPosition(3, 0, "");
@@ -35,10 +592,10 @@ public class FlooDmp extends diff_match_patch {
             if (text1.length() > this.Match_MaxBits) {
                 // patch_splitMax will only provide an oversized pattern in the case of
                 // a monster delete.
-                start_loc = match_main(text,
+                start_loc = match_main(buffer,
                         text1.substring(0, this.Match_MaxBits), expected_loc);
                 if (start_loc != -1) {
-                    end_loc = match_main(text,
+                    end_loc = match_main(buffer,
                             text1.substring(text1.length() - this.Match_MaxBits),
                             expected_loc + text1.length() - this.Match_MaxBits);
                     if (end_loc == -1 || start_loc >= end_loc) {
@@ -47,11 +604,12 @@ public class FlooDmp extends diff_match_patch {
                     }
                 }
             } else {
-                start_loc = match_main(text, text1, expected_loc);
+                start_loc = match_main(buffer, text1, expected_loc);
             }
             if (start_loc == -1) {
                 // No match found.  :(
                 results[x] = false;
+                exact = false;
                 // Subtract the delta for this failed patch from subsequent patches.
                 delta -= aPatch.length2 - aPatch.length1;
             } else {
@@ -60,21 +618,21 @@ public class FlooDmp extends diff_match_patch {
                 delta = start_loc - expected_loc;
                 String text2;
                 if (end_loc == -1) {
-                    text2 = text.substring(start_loc,
-                            Math.min(start_loc + text1.length(), text.length()));
+                    text2 = buffer.substring(start_loc,
+                            Math.min(start_loc + text1.length(), buffer.length()));
                 } else {
-                    text2 = text.substring(start_loc,
-                            Math.min(end_loc + this.Match_MaxBits, text.length()));
+                    text2 = buffer.substring(start_loc,
+                            Math.min(end_loc + this.Match_MaxBits, buffer.length()));
                 }
                 if (text1.equals(text2)) {
                     // Perfect match, just shove the replacement text in.
                     String replacement_str = diff_text2(aPatch.diffs);
-                    text = text.substring(0, start_loc) + replacement_str
-                            + text.substring(start_loc + text1.length());
+                    buffer.replace(start_loc, start_loc + text1.length(), replacement_str);
                     position = new FlooPatchPosition(start_loc, text1.length(), replacement_str);
                 } else {
                     // Imperfect match.  Run a diff to get a framework of equivalent
                     // indices.
+                    exact = false;
                     LinkedList<Diff> diffs = diff_main(text1, text2, false);
                     if (text1.length() > this.Match_MaxBits
                             && diff_levenshtein(diffs) / (float) text1.length()
@@ -85,20 +643,18 @@ public class FlooDmp extends diff_match_patch {
                         diff_cleanupSemanticLossless(diffs);
                         int index1 = 0;
                         int delete_len = 0;
-                        String inserted_text = "";
+                        StringBuilder inserted_text = new StringBuilder();
                         for (Diff aDiff : aPatch.diffs) {
                             if (aDiff.operation != Operation.EQUAL) {
                                 int index2 = diff_xIndex(diffs, index1);
                                 if (aDiff.operation == Operation.INSERT) {
                                     // Insertion
-                                    text = text.substring(0, start_loc + index2) + aDiff.text
-                                            + text.substring(start_loc + index2);
-                                    inserted_text += aDiff.text;
+                                    buffer.insert(start_loc + index2, aDiff.text);
+                                    inserted_text.append(aDiff.text);
                                 } else if (aDiff.operation == Operation.DELETE) {
                                     // Deletion
                                     int diff_index = diff_xIndex(diffs, index1 + aDiff.text.length());
-                                    text = text.substring(0, start_loc + index2)
-                                            + text.substring(start_loc + diff_index);
+                                    buffer.delete(start_loc + index2, start_loc + diff_index);
                                     delete_len += (diff_index - index2);
                                 }
                             }
@@ -106,11 +662,11 @@ public class FlooDmp extends diff_match_patch {
                                 index1 += aDiff.text.length();
                             }
                         }
-                        position = new FlooPatchPosition(start_loc, delete_len, inserted_text);
+                        position = new FlooPatchPosition(start_loc, delete_len, inserted_text.toString());
                     }
                 }
             }
-            final int text_len = text.length();
+            final int text_len = buffer.length();
             if (position.start < np_len) {
                 position.end -= np_len - position.start;
                 position.text = position.text.substring(Math.min(np_len - position.start, position.text.length()));
@@ -131,8 +687,6 @@ public class FlooDmp extends diff_match_patch {
 
         }
         // Strip the padding off.
-        text = text.substring(nullPadding.length(), text.length()
-                - nullPadding.length());
-        return new Object[]{text, results, positions};
+        return new Object[]{buffer.substring(np_len, buffer.length() - np_len), results, positions, exact};
     }
 }
@@ -5,7 +5,7 @@ public class FlooPatchPosition {
     public int end;
     public String text;
 
-    FlooPatchPosition(int start, int end, String text) {
+    public FlooPatchPosition(int start, int end, String text) {
         this.start = start;
         this.end = end;
         this.text = text;
@@ -0,0 +1,394 @@
+package floobits.common.dmp;
+
+/**
+ * Line level diff over int tokens. Each distinct line gets an id from a hash table that points back into the text it
+ * came from, so unlike diff_linesToChars nothing is copied and there is no 65k line limit. The diff itself is Myers'
+ * middle snake, the same algorithm as diff_match_patch.diff_bisect, on int arrays.
+ */
+public class LineDiff {
+    public static final int EQUAL = 0;
+    public static final int DELETE = 1;
+    public static final int INSERT = 2;
+
+    /**
+     * Line i of text is text[starts[i], starts[i + 1]), newline included, and tokens[i] is its id.
+     */
+    public static class Lines {
+        public final String text;
+        public final int[] starts;
+        public final int[] tokens;
+
+        Lines(String text, int[] starts, int[] tokens) {
+            this.text = text;
+            this.starts = starts;
+            this.tokens = tokens;
+        }
+
+        public int size() {
+            return tokens.length;
+        }
+
+        public String substring(int fromLine, int toLine) {
+            return text.substring(starts[fromLine], starts[toLine]);
+        }
+    }
+
+    /**
+     * An edit script in lines, with neighbouring runs of the same op merged.
+     */
+    public static class Edits {
+        private int[] ops = new int[16];
+        private int[] counts = new int[16];
+        private int size;
+
+        public void add(int op, int count) {
+            if (count == 0) {
+                return;
+            }
+            if (size > 0 && ops[size - 1] == op) {
+                counts[size - 1] += count;
+                return;
+            }
+            if (size == ops.length) {
+                int[] newOps = new int[size * 2];
+                int[] newCounts = new int[size * 2];
+                System.arraycopy(ops, 0, newOps, 0, size);
+                System.arraycopy(counts, 0, newCounts, 0, size);
+                ops = newOps;
+                counts = newCounts;
+            }
+            ops[size] = op;
+            counts[size] = count;
+            size++;
+        }
+
+        public void addAll(Edits other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.ops[i], other.counts[i]);
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int op(int i) {
+            return ops[i];
+        }
+
+        public int count(int i) {
+            return counts[i];
+        }
+    }
+
+    /**
+     * Distinct lines -> ids, open addressing on the line's hash. An id remembers where its first occurrence is so
+     * later lines can be compared against it in place.
+     */
+    private static class Interner {
+        private int[] table = new int[1024];
+        private int[] hashes = new int[256];
+        private String[] texts = new String[256];
+        private int[] starts = new int[256];
+        private int[] lengths = new int[256];
+        private int count;
+
+        int intern(String text, int start, int end) {
+            int length = end - start;
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + text.charAt(i);
+            }
+            int mask = table.length - 1;
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (true) {
+                int id = table[slot] - 1;
+                if (id < 0) {
+                    break;
+                }
+                if (hashes[id] == h && lengths[id] == length
+                        && text.regionMatches(start, texts[id], starts[id], length)) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (count == hashes.length) {
+                grow();
+            }
+            int id = count++;
+            hashes[id] = h;
+            texts[id] = text;
+            starts[id] = start;
+            lengths[id] = length;
+            table[slot] = id + 1;
+            if (count * 2 > table.length) {
+                rehash();
+            }
+            return id;
+        }
+
+        private void grow() {
+            int capacity = hashes.length * 2;
+            int[] newHashes = new int[capacity];
+            String[] newTexts = new String[capacity];
+            int[] newStarts = new int[capacity];
+            int[] newLengths = new int[capacity];
+            System.arraycopy(hashes, 0, newHashes, 0, count);
+            System.arraycopy(texts, 0, newTexts, 0, count);
+            System.arraycopy(starts, 0, newStarts, 0, count);
+            System.arraycopy(lengths, 0, newLengths, 0, count);
+            hashes = newHashes;
+            texts = newTexts;
+            starts = newStarts;
+            lengths = newLengths;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for (int id = 0; id < count; id++) {
+                int h = hashes[id];
+                int slot = (h ^ (h >>> 16)) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = id + 1;
+            }
+        }
+    }
+
+    private static Lines split(String text, Interner interner) {
+        int lines = 0;
+        for (int pos = text.indexOf('\n'); pos != -1; pos = text.indexOf('\n', pos + 1)) {
+            lines++;
+        }
+        if (text.length() > 0 && text.charAt(text.length() - 1) != '\n') {
+            lines++;
+        }
+        int[] starts = new int[lines + 1];
+        int[] tokens = new int[lines];
+        int start = 0;
+        for (int i = 0; i < lines; i++) {
+            int end = text.indexOf('\n', start);
+            end = end == -1 ? text.length() : end + 1;
+            starts[i] = start;
+            tokens[i] = interner.intern(text, start, end);
+            start = end;
+        }
+        starts[lines] = text.length();
+        return new Lines(text, starts, tokens);
+    }
+
+    /**
+     * @return both texts split into lines, with equal lines sharing a token.
+     */
+    public static Lines[] tokenize(String text1, String text2) {
+        Interner interner = new Interner();
+        return new Lines[]{split(text1, interner), split(text2, interner)};
+    }
+
+    /**
+     * Patience diff's anchors: lines that occur exactly once in a and once in b, cut down to the longest run that is
+     * in the same order in both.
+     * @return a line, b line, a line, b line, ... in increasing order.
+     */
+    public static int[] anchors(int[] a, int[] b) {
+        int tokens = 0;
+        for (int t : a) {
+            tokens = Math.max(tokens, t + 1);
+        }
+        for (int t : b) {
+            tokens = Math.max(tokens, t + 1);
+        }
+        int[] countA = new int[tokens];
+        int[] countB = new int[tokens];
+        int[] lineB = new int[tokens];
+        for (int t : a) {
+            countA[t]++;
+        }
+        for (int j = 0; j < b.length; j++) {
+            countB[b[j]]++;
+            lineB[b[j]] = j;
+        }
+        int[] uniqueA = new int[a.length];
+        int[] uniqueB = new int[a.length];
+        int unique = 0;
+        for (int i = 0; i < a.length; i++) {
+            int t = a[i];
+            if (countA[t] == 1 && countB[t] == 1) {
+                uniqueA[unique] = i;
+                uniqueB[unique] = lineB[t];
+                unique++;
+            }
+        }
+
+        // Longest increasing run of uniqueB by patience sorting. piles[k] is the candidate ending the best run of
+        // length k + 1 so far, previous links each candidate to the one before it in its run.
+        int[] piles = new int[unique];
+        int[] previous = new int[unique];
+        int length = 0;
+        for (int c = 0; c < unique; c++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (uniqueB[piles[mid]] < uniqueB[c]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            piles[low] = c;
+            previous[c] = low > 0 ? piles[low - 1] : -1;
+            if (low == length) {
+                length++;
+            }
+        }
+        int[] anchors = new int[length * 2];
+        for (int k = length - 1, c = length > 0 ? piles[length - 1] : -1; k >= 0; k--, c = previous[c]) {
+            anchors[2 * k] = uniqueA[c];
+            anchors[2 * k + 1] = uniqueB[c];
+        }
+        return anchors;
+    }
+
+    /**
+     * Line edits turning a[aStart, aEnd) into b[bStart, bEnd). Past the deadline, what's left of a region is
+     * reported as deleted and reinserted, like diff_bisect does.
+     */
+    public static Edits diff(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, long deadline) {
+        Edits edits = new Edits();
+        diff(a, aStart, aEnd, b, bStart, bEnd, deadline, edits);
+        return edits;
+    }
+
+    private static void diff(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, long deadline,
+                             Edits edits) {
+        int prefix = 0;
+        while (aStart + prefix < aEnd && bStart + prefix < bEnd && a[aStart + prefix] == b[bStart + prefix]) {
+            prefix++;
+        }
+        edits.add(EQUAL, prefix);
+        aStart += prefix;
+        bStart += prefix;
+        int suffix = 0;
+        while (aStart < aEnd - suffix && bStart < bEnd - suffix && a[aEnd - suffix - 1] == b[bEnd - suffix - 1]) {
+            suffix++;
+        }
+        aEnd -= suffix;
+        bEnd -= suffix;
+
+        if (aStart == aEnd || bStart == bEnd) {
+            edits.add(DELETE, aEnd - aStart);
+            edits.add(INSERT, bEnd - bStart);
+        } else if (!bisect(a, aStart, aEnd, b, bStart, bEnd, deadline, edits)) {
+            edits.add(DELETE, aEnd - aStart);
+            edits.add(INSERT, bEnd - bStart);
+        }
+        edits.add(EQUAL, suffix);
+    }
+
+    /**
+     * Finds the middle snake and diffs both halves.
+     * @return false if there is no common line or time ran out.
+     */
+    private static boolean bisect(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, long deadline,
+                                  Edits edits) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int max_d = (n + m + 1) / 2;
+        int v_offset = max_d;
+        // diff_bisect gets away with 2 * max_d since diff_compute never hands it a single char; a region here can be
+        // one line on each side.
+        int v_length = 2 * max_d + 2;
+        int[] v1 = new int[v_length];
+        int[] v2 = new int[v_length];
+        for (int x = 0; x < v_length; x++) {
+            v1[x] = -1;
+            v2[x] = -1;
+        }
+        v1[v_offset + 1] = 0;
+        v2[v_offset + 1] = 0;
+        int delta = n - m;
+        // If the total number of lines is odd, the front path will collide with the reverse path.
+        boolean front = (delta % 2 != 0);
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
+        for (int d = 0; d < max_d; d++) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            // Walk the front path one step.
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1_offset = v_offset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1_offset - 1] < v1[k1_offset + 1])) {
+                    x1 = v1[k1_offset + 1];
+                } else {
+                    x1 = v1[k1_offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aStart + x1] == b[bStart + y1]) {
+                    x1++;
+                    y1++;
+                }
+                v1[k1_offset] = x1;
+                if (x1 > n) {
+                    k1end += 2;
+                } else if (y1 > m) {
+                    k1start += 2;
+                } else if (front) {
+                    int k2_offset = v_offset + delta - k1;
+                    if (k2_offset >= 0 && k2_offset < v_length && v2[k2_offset] != -1) {
+                        int x2 = n - v2[k2_offset];
+                        if (x1 >= x2) {
+                            split(a, aStart, aEnd, b, bStart, bEnd, x1, y1, deadline, edits);
+                            return true;
+                        }
+                    }
+                }
+            }
+
+            // Walk the reverse path one step.
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2_offset = v_offset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2_offset - 1] < v2[k2_offset + 1])) {
+                    x2 = v2[k2_offset + 1];
+                } else {
+                    x2 = v2[k2_offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aEnd - x2 - 1] == b[bEnd - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2_offset] = x2;
+                if (x2 > n) {
+                    k2end += 2;
+                } else if (y2 > m) {
+                    k2start += 2;
+                } else if (!front) {
+                    int k1_offset = v_offset + delta - k2;
+                    if (k1_offset >= 0 && k1_offset < v_length && v1[k1_offset] != -1) {
+                        int x1 = v1[k1_offset];
+                        int y1 = v_offset + x1 - k1_offset;
+                        if (x1 >= n - x2) {
+                            split(a, aStart, aEnd, b, bStart, bEnd, x1, y1, deadline, edits);
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void split(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, int x, int y,
+                              long deadline, Edits edits) {
+        diff(a, aStart, aStart + x, b, bStart, bStart + y, deadline, edits);
+        diff(a, aStart + x, aEnd, b, bStart + y, bEnd, deadline, edits);
+    }
+}
@@ -0,0 +1,299 @@
+package floobits.common.dmp;
+
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The patch text format in one pass each way. diff_match_patch goes through URLEncoder, a dozen String.replace calls
+ * and a regex per header to write it, and String.split, URLDecoder and the same regex to read it. This writes and
+ * reads the exact same text, escaping and unescaping chars as it walks them, into a StringBuilder each thread keeps.
+ */
+class PatchCodec {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    // Chars URLEncoder leaves alone, plus the ones unescapeForEncodeUriCompatability puts back. Space is '+' from
+    // URLEncoder, then ' ' again.
+    private static final boolean[] LITERAL = new boolean[128];
+    // Don't hang on to the buffers of a huge patch.
+    private static final int MAX_KEPT = 1 << 16;
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            LITERAL[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            LITERAL[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            LITERAL[c] = true;
+        }
+        for (char c : ".-*_!~'();/?:@&=+$,# ".toCharArray()) {
+            LITERAL[c] = true;
+        }
+    }
+
+    private static class State {
+        StringBuilder text = new StringBuilder(1024);
+        byte[] bytes = new byte[256];
+    }
+
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private static StringBuilder builder(State s) {
+        if (s.text.capacity() > MAX_KEPT) {
+            s.text = new StringBuilder(1024);
+        }
+        s.text.setLength(0);
+        return s.text;
+    }
+
+    static String toText(List<diff_match_patch.Patch> patches) {
+        StringBuilder text = builder(state.get());
+        for (diff_match_patch.Patch patch : patches) {
+            text.append("@@ -");
+            appendCoords(text, patch.start1, patch.length1);
+            text.append(" +");
+            appendCoords(text, patch.start2, patch.length2);
+            text.append(" @@\n");
+            for (diff_match_patch.Diff diff : patch.diffs) {
+                switch (diff.operation) {
+                    case INSERT:
+                        text.append('+');
+                        break;
+                    case DELETE:
+                        text.append('-');
+                        break;
+                    case EQUAL:
+                        text.append(' ');
+                        break;
+                }
+                encode(text, diff.text);
+                text.append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    private static void appendCoords(StringBuilder text, int start, int length) {
+        if (length == 0) {
+            text.append(start).append(",0");
+        } else if (length == 1) {
+            text.append(start + 1);
+        } else {
+            text.append(start + 1).append(',').append(length);
+        }
+    }
+
+    private static void encode(StringBuilder text, String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (LITERAL[c]) {
+                    text.append(c);
+                } else {
+                    appendByte(text, c);
+                }
+            } else if (c < 0x800) {
+                appendByte(text, 0xc0 | (c >> 6));
+                appendByte(text, 0x80 | (c & 0x3f));
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                appendByte(text, 0xe0 | (c >> 12));
+                appendByte(text, 0x80 | ((c >> 6) & 0x3f));
+                appendByte(text, 0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                appendByte(text, 0xf0 | (codePoint >> 18));
+                appendByte(text, 0x80 | ((codePoint >> 12) & 0x3f));
+                appendByte(text, 0x80 | ((codePoint >> 6) & 0x3f));
+                appendByte(text, 0x80 | (codePoint & 0x3f));
+            } else {
+                // URLEncoder gets '?' for half a surrogate pair, which comes out as %3F and is then unescaped.
+                text.append('?');
+            }
+        }
+    }
+
+    private static void appendByte(StringBuilder text, int b) {
+        text.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+    }
+
+    static List<diff_match_patch.Patch> fromText(String textline) {
+        List<diff_match_patch.Patch> patches = new LinkedList<diff_match_patch.Patch>();
+        // String.split drops trailing empty lines.
+        int end = textline.length();
+        while (end > 0 && textline.charAt(end - 1) == '\n') {
+            end--;
+        }
+        State s = state.get();
+        diff_match_patch.Patch patch = null;
+        for (int start = 0; start < end; ) {
+            int lineEnd = textline.indexOf('\n', start);
+            if (lineEnd == -1 || lineEnd > end) {
+                lineEnd = end;
+            }
+            if (patch == null || (lineEnd > start && textline.charAt(start) == '@')) {
+                patch = parseHeader(textline, start, lineEnd);
+                patches.add(patch);
+            } else if (lineEnd > start) {
+                // Blank lines are skipped.
+                char sign = textline.charAt(start);
+                String line = decode(s, textline, start + 1, lineEnd);
+                if (sign == '-') {
+                    patch.diffs.add(new diff_match_patch.Diff(diff_match_patch.Operation.DELETE, line));
+                } else if (sign == '+') {
+                    patch.diffs.add(new diff_match_patch.Diff(diff_match_patch.Operation.INSERT, line));
+                } else if (sign == ' ') {
+                    patch.diffs.add(new diff_match_patch.Diff(diff_match_patch.Operation.EQUAL, line));
+                } else {
+                    throw new IllegalArgumentException("Invalid patch mode '" + sign + "' in: " + line);
+                }
+            }
+            start = lineEnd + 1;
+        }
+        return patches;
+    }
+
+    /**
+     * Reads "@@ -start1,length1 +start2,length2 @@" like ^@@ -(\d+),?(\d*) \+(\d+),?(\d*) @@$ does.
+     */
+    private static diff_match_patch.Patch parseHeader(String text, int start, int end) {
+        diff_match_patch.Patch patch = new diff_match_patch.Patch();
+        int[] coords = new int[2];
+        int pos = expect(text, start, end, "@@ -");
+        pos = coords(text, pos, end, coords);
+        patch.start1 = coords[0];
+        patch.length1 = coords[1];
+        pos = expect(text, pos, end, " +");
+        pos = coords(text, pos, end, coords);
+        patch.start2 = coords[0];
+        patch.length2 = coords[1];
+        pos = expect(text, pos, end, " @@");
+        if (pos != end) {
+            throw new IllegalArgumentException("Invalid patch string: " + text.substring(start, end));
+        }
+        return patch;
+    }
+
+    /**
+     * Reads (\d+),?(\d*) into coords as start and length, the way patch_fromText does.
+     * @return where it stopped, or -1 if there are no digits.
+     */
+    private static int coords(String text, int pos, int end, int[] coords) {
+        if (pos < 0) {
+            return -1;
+        }
+        int digits = digits(text, pos, end);
+        if (digits == pos) {
+            return -1;
+        }
+        int start = Integer.parseInt(text.substring(pos, digits));
+        pos = digits;
+        if (pos < end && text.charAt(pos) == ',') {
+            pos++;
+        }
+        int lengthEnd = digits(text, pos, end);
+        if (lengthEnd == pos) {
+            coords[0] = start - 1;
+            coords[1] = 1;
+        } else if (lengthEnd - pos == 1 && text.charAt(pos) == '0') {
+            coords[0] = start;
+            coords[1] = 0;
+        } else {
+            coords[0] = start - 1;
+            coords[1] = Integer.parseInt(text.substring(pos, lengthEnd));
+        }
+        return lengthEnd;
+    }
+
+    private static int digits(String text, int pos, int end) {
+        while (pos < end && text.charAt(pos) >= '0' && text.charAt(pos) <= '9') {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the position after expected, or -1 if it isn't at pos.
+     */
+    private static int expect(String text, int pos, int end, String expected) {
+        if (pos < 0 || end - pos < expected.length() || !text.startsWith(expected, pos)) {
+            return -1;
+        }
+        return pos + expected.length();
+    }
+
+    /**
+     * URLDecoder.decode of text[start, end) with '+' kept as '+'. Runs of %xx escapes become UTF-8 bytes, and since
+     * patch_fromText turns '+' into %2B first, a '+' next to them is part of the run.
+     */
+    private static String decode(State s, String text, int start, int end) {
+        int i = text.indexOf('%', start);
+        if (i == -1 || i >= end) {
+            return text.substring(start, end);
+        }
+        StringBuilder line = builder(s);
+        line.append(text, start, i);
+        while (i < end) {
+            char c = text.charAt(i);
+            if (c != '%') {
+                line.append(c);
+                i++;
+                continue;
+            }
+            int count = 0;
+            boolean ascii = true;
+            while (i < end) {
+                c = text.charAt(i);
+                int b;
+                if (c == '+') {
+                    b = '+';
+                    i++;
+                } else if (c == '%') {
+                    if (i + 2 >= end) {
+                        throw illegalEscape(text, start, end);
+                    }
+                    // URLDecoder uses Integer.parseInt(hex, 16), which takes any digit Character.digit does, and
+                    // a sign. Only "-0" isn't negative.
+                    int high = text.charAt(i + 1) == '-' ? 0 : Character.digit(text.charAt(i + 1), 16);
+                    int low = Character.digit(text.charAt(i + 2), 16);
+                    if (high < 0 || low < 0 || (text.charAt(i + 1) == '-' && low != 0)) {
+                        throw illegalEscape(text, start, end);
+                    }
+                    b = (high << 4) | low;
+                    i += 3;
+                } else {
+                    break;
+                }
+                if (count == s.bytes.length) {
+                    byte[] bytes = new byte[count * 2];
+                    System.arraycopy(s.bytes, 0, bytes, 0, count);
+                    s.bytes = bytes;
+                }
+                s.bytes[count++] = (byte) b;
+                ascii &= b < 0x80;
+            }
+            if (ascii) {
+                for (int k = 0; k < count; k++) {
+                    line.append((char) s.bytes[k]);
+                }
+            } else {
+                line.append(new String(s.bytes, 0, count, UTF8));
+            }
+        }
+        if (s.bytes.length > MAX_KEPT) {
+            s.bytes = new byte[256];
+        }
+        return line.toString();
+    }
+
+    private static IllegalArgumentException illegalEscape(String text, int start, int end) {
+        return new IllegalArgumentException("Illegal escape in patch_fromText: " + text.substring(start, end));
+    }
+}
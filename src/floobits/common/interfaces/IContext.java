@@ -8,14 +8,12 @@ import floobits.common.protocol.handlers.FlooHandler;
 import floobits.common.protocol.handlers.LinkEditorHandler;
 import floobits.utilities.Flog;
 import io.fletty.bootstrap.Bootstrap;
-import io.fletty.channel.nio.NioEventLoopGroup;
 import io.fletty.util.concurrent.ScheduledFuture;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.net.MalformedURLException;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -27,7 +25,7 @@ public abstract class IContext {
     public Date lastChatMessage;
     public IFactory iFactory;
     protected Ignore ignoreTree;
-    protected volatile NioEventLoopGroup loopGroup;
+    protected volatile EventLoopView loopGroup;
 
     public IContext() {
         editor = new EditorScheduler(this);
@@ -37,8 +35,8 @@ public abstract class IContext {
         boolean b1 = false;
         try {
             lock.readLock().lock();
-            if (loopGroup != null) {
-                b.group(loopGroup);
+            if (loopGroup != null && !loopGroup.isShutdown()) {
+                loopGroup.bootstrap(b);
                 b1 = true;
             }
         } finally {
@@ -52,7 +50,7 @@ public abstract class IContext {
         try {
             lock.readLock().lock();
             if (loopGroup != null) {
-                schedule = loopGroup.schedule(runnable, time, TimeUnit.MILLISECONDS);
+                schedule = loopGroup.schedule(runnable, time);
             }
         } catch(Throwable e) {
             Flog.error(e);
@@ -218,7 +216,7 @@ public abstract class IContext {
 
         lock.writeLock().lock();
         this.handler = handler;
-        loopGroup = new NioEventLoopGroup();
+        loopGroup = EventLoops.newView();
         lock.writeLock().unlock();
         handler.go();
         return true;
@@ -284,7 +282,7 @@ public abstract class IContext {
 
             if (loopGroup != null) {
                 try {
-                    loopGroup.shutdownGracefully(0, 500, TimeUnit.MILLISECONDS);
+                    loopGroup.shutdown();
                 } catch (Throwable e) {
                     Flog.error(e);
                 } finally {
@@ -317,6 +315,10 @@ public abstract class IContext {
     public abstract void toggleFloobitsWindow();
     public abstract void listenToEditor(EditorEventHandler editorEventHandler);
     public abstract void setListener(boolean b);
+    // Stop and restart reporting changes to the file at absPath, around a remote write to it. Changes to other files
+    // are still reported. Calls nest.
+    public abstract void suppressListener(String absPath);
+    public abstract void resumeListener(String absPath);
     public abstract void setSaving(boolean b);
     public abstract void mainThread(final Runnable runnable);
     public abstract void readThread(final Runnable runnable);
@@ -9,9 +9,18 @@ abstract public class IDoc {
     public abstract void applyHighlight(HighlightContext highlight);
     public abstract void save();
     public abstract String getText();
+    public abstract int getTextLength();
     public abstract void setText(String text);
     public abstract void setReadOnly(boolean readOnly);
     public abstract boolean makeWritable();
     public abstract IFile getVirtualFile();
-    public abstract String patch(FlooPatchPosition[] positions);
+    /**
+     * @return a number that changes whenever the document does.
+     */
+    public abstract long getModificationStamp();
+    /**
+     * Applies positions from FlooDmp.patch_apply in order.
+     * @return false if any of them failed to apply.
+     */
+    public abstract boolean patch(FlooPatchPosition[] positions);
 }
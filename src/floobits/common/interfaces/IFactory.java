@@ -1,6 +1,7 @@
 package floobits.common.interfaces;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.HashSet;
 
 public interface IFactory {
@@ -17,5 +18,10 @@ public interface IFactory {
     void clearHighlights();
     void clearReadOnlyState();
     void goToLastHighlight();
+    /**
+     * Called on the UI thread.
+     * @return absolute paths of the files in selected editors.
+     */
+    Collection<String> getFocusedPaths();
     HashSet<String> readOnlyBufferIds = new HashSet<String>();
 }
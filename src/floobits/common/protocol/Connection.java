@@ -1,26 +1,26 @@
 package floobits.common.protocol;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import floobits.common.API;
 import floobits.common.Constants;
 import floobits.common.FlooUrl;
 import floobits.common.Utils;
 import floobits.common.interfaces.IContext;
+import floobits.common.protocol.codec.FlooFrame;
+import floobits.common.protocol.codec.FlooFrameDecoder;
+import floobits.common.protocol.codec.FlooFrameEncoder;
+import floobits.common.protocol.codec.OutboundStats;
 import floobits.common.protocol.handlers.BaseHandler;
+import floobits.common.protocol.json.send.Ping;
 import floobits.utilities.Flog;
 import io.fletty.bootstrap.Bootstrap;
 import io.fletty.channel.*;
 import io.fletty.channel.socket.SocketChannel;
-import io.fletty.channel.socket.nio.NioSocketChannel;
-import io.fletty.handler.codec.LineBasedFrameDecoder;
 import io.fletty.handler.codec.TooLongFrameException;
-import io.fletty.handler.codec.string.StringDecoder;
-import io.fletty.handler.codec.string.StringEncoder;
 import io.fletty.handler.ssl.SslHandler;
-import io.fletty.util.CharsetUtil;
+import io.fletty.handler.timeout.IdleStateEvent;
+import io.fletty.handler.timeout.IdleStateHandler;
+import io.fletty.util.concurrent.Future;
+import io.fletty.util.concurrent.GenericFutureListener;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -29,36 +29,80 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.net.ConnectException;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 @ChannelHandler.Sharable
-public class Connection extends SimpleChannelInboundHandler<String> {
+public class Connection extends SimpleChannelInboundHandler<FlooFrame> {
     private class FlooChannelInitializer extends ChannelInitializer<SocketChannel> {
         private Connection connection;
+        private final String host;
+        private final int port;
 
-        private FlooChannelInitializer(Connection connection) {
+        private FlooChannelInitializer(Connection connection, String host, int port) {
             this.connection = connection;
+            this.host = host;
+            this.port = port;
         }
 
         @Override
         public void initChannel(SocketChannel ch) throws Exception {
             ChannelPipeline pipeline = ch.pipeline();
-            SSLContext sslContext = Utils.createSSLContext();
-            SSLEngine engine = sslContext.createSSLEngine();
+            SSLContext sslContext = Utils.getSSLContext();
+            // Passing the peer lets the SSLContext's session cache resume the previous session on reconnect.
+            SSLEngine engine = sslContext.createSSLEngine(host, port);
             engine.setUseClientMode(true);
-            pipeline.addLast("ssl", new SslHandler(engine));
-            pipeline.addLast("framer", new LineBasedFrameDecoder(1000 * 1000 * 10, true, false));
-            pipeline.addLast("decoder", new StringDecoder(CharsetUtil.UTF_8));
-            pipeline.addLast("encoder", new StringEncoder(CharsetUtil.UTF_8));
+            final SslHandler sslHandler = new SslHandler(engine);
+            sslHandler.handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+                @Override
+                public void operationComplete(Future<Channel> future) throws Exception {
+                    if (!future.isSuccess()) {
+                        return;
+                    }
+                    long elapsed = System.nanoTime() - connectedAt;
+                    boolean resumed = sslHandler.engine().getSession().getCreationTime() < connectedAtMillis;
+                    connectionStats.recordHandshake(elapsed, resumed);
+                    Flog.log("TLS handshake with %s:%s took %sms (%s). %s", host, port, elapsed / 1000000,
+                            resumed ? "resumed" : "full", connectionStats);
+                }
+            });
+            pipeline.addLast("ssl", sslHandler);
+            pipeline.addLast("decoder", new FlooFrameDecoder(1000 * 1000 * 10));
+            pipeline.addLast("encoder", new FlooFrameEncoder(outboundStats));
+            if (heartbeatInterval > 0) {
+                pipeline.addLast("idle", new IdleStateHandler(heartbeatInterval, 0, 0));
+            }
             pipeline.addLast("handler", connection);
         }
     }
+    // Writes are flushed together this many ms after the first unflushed one. 0 flushes at the end of the current
+    // event loop tick.
+    public static int flushWindow = 0;
+    // Seconds without an inbound frame before we ping the server. Another silent interval after that means the
+    // connection is dead and we reconnect. 0 disables the heartbeat.
+    public static int heartbeatInterval = 15;
     private final BaseHandler handler;
     private final IContext context;
+    private final OutboundStats outboundStats = new OutboundStats();
+    private final ConnectionStats connectionStats = new ConnectionStats();
+    private final OutboundScheduler scheduler = new OutboundScheduler(this, outboundStats);
     protected Channel channel;
     private int MAX_RETRIES = 22;
     private int INITIAL_RECONNECT_DELAY = 500;
     protected volatile Integer retries = MAX_RETRIES;
     protected Integer delay = INITIAL_RECONNECT_DELAY;
+    private volatile long connectStartedAt;
+    private volatile long connectedAt;
+    private volatile long connectedAtMillis;
+    // When the outstanding ping was flushed, 0 while it is still queued behind other writes or there is none.
+    private volatile long pingSentAt = 0;
+    final ChannelFutureListener pingWritten = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.isSuccess()) {
+                pingSentAt = System.nanoTime();
+            }
+        }
+    };
 
     public Connection(final BaseHandler handler) {
         this.handler = handler;
@@ -72,18 +116,24 @@ public class Connection extends SimpleChannelInboundHandler<String> {
         connect();
     }
 
+    public OutboundStats getOutboundStats() {
+        return outboundStats;
+    }
+
+    public ConnectionStats getConnectionStats() {
+        return connectionStats;
+    }
+
+    public OutboundScheduler getScheduler() {
+        return scheduler;
+    }
+
     public void write(Serializable obj) {
-        // TODO: threading issue. lock channel
         if (channel == null) {
             Flog.error("not writing because no channel");
             return;
         }
-        String data = new Gson().toJson(obj);
-        if (channel == null) {
-            Flog.error("Lost connection? Not writing because no channel. Also, race condition!");
-            return;
-        }
-        channel.writeAndFlush(data + "\n");
+        scheduler.write(obj);
     }
 
     protected void _connect(String host, int port) {
@@ -93,13 +143,13 @@ public class Connection extends SimpleChannelInboundHandler<String> {
             Flog.warn("no loopgroup, will not reconnect");
             return;
         }
-        b.channel(NioSocketChannel.class);
         b.option(ChannelOption.SO_KEEPALIVE, true);
         b.option(ChannelOption.TCP_NODELAY, true);
         b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 15*1000);
-        b.handler(new FlooChannelInitializer(this));
+        b.handler(new FlooChannelInitializer(this, host, port));
 
         try {
+            connectStartedAt = System.nanoTime();
             ChannelFuture connect = b.connect(host, port);
             channel = connect.channel();
         }   catch (RejectedExecutionException e) {
@@ -166,6 +216,8 @@ public class Connection extends SimpleChannelInboundHandler<String> {
 
     public void shutdown() {
         retries = -1;
+        Flog.log("Outbound messages:\n%s", outboundStats);
+        Flog.log("%s", connectionStats.rttString());
         if (channel != null) {
             try {
                 channel.disconnect();
@@ -179,32 +231,61 @@ public class Connection extends SimpleChannelInboundHandler<String> {
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        Flog.log("Connected to %s", ctx.channel().remoteAddress());
+        connectedAt = System.nanoTime();
+        connectedAtMillis = System.currentTimeMillis();
+        Flog.log("Connected to %s in %sms", ctx.channel().remoteAddress(), (System.nanoTime() - connectStartedAt) / 1000000);
+        pingSentAt = 0;
+        scheduler.reset(true);
         handler.on_connect();
     }
 
     @Override
-    public void channelRead0(ChannelHandlerContext ctx, String msg) throws Exception {
-        JsonObject obj = (JsonObject)new JsonParser().parse(msg);
-        JsonElement name = obj.get("name");
-        if (name == null) {
-            Flog.warn("No name for receive, ignoring");
-            return;
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            scheduler.scheduleDrain();
         }
-        String requestName = name.getAsString();
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelRead0(ChannelHandlerContext ctx, FlooFrame frame) throws Exception {
         retries = MAX_RETRIES;
         delay = INITIAL_RECONNECT_DELAY;
-        handler.on_data(requestName, obj);
+        scheduler.handshakeComplete();
+        if (pingSentAt != 0 && "pong".equals(frame.name)) {
+            connectionStats.recordRtt(System.nanoTime() - pingSentAt);
+            pingSentAt = 0;
+        }
+        handler.on_data(frame);
     }
 
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-        Flog.log("%s", evt.toString());
+        if (!(evt instanceof IdleStateEvent)) {
+            Flog.log("%s", evt.toString());
+            return;
+        }
+        if (((IdleStateEvent) evt).isFirst()) {
+            pingSentAt = 0;
+            connectionStats.pings.incrementAndGet();
+            scheduler.write(new Ping());
+            return;
+        }
+        // A ping stuck behind a big upload can't have been answered yet, so give the server a whole interval from
+        // when it went out.
+        if (pingSentAt == 0 || System.nanoTime() - pingSentAt < TimeUnit.SECONDS.toNanos(heartbeatInterval)) {
+            return;
+        }
+        connectionStats.idleTimeouts.incrementAndGet();
+        Flog.warn("Nothing from %s in %ss, assuming the connection is dead.", ctx.channel().remoteAddress(), heartbeatInterval * 2);
+        // Closing unregisters the channel, which reconnects.
+        ctx.close();
     }
 
     @Override
     public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
         Flog.log("Channel is now inactive.");
+        handler.on_disconnect();
     }
 
     @Override
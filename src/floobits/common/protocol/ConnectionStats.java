@@ -0,0 +1,65 @@
+package floobits.common.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection level latency numbers, kept across reconnects.
+ */
+public class ConnectionStats {
+    public final AtomicLong handshakes = new AtomicLong();
+    public final AtomicLong resumedHandshakes = new AtomicLong();
+    public final AtomicLong handshakeNanos = new AtomicLong();
+    public final AtomicLong resumedHandshakeNanos = new AtomicLong();
+    public final AtomicLong pings = new AtomicLong();
+    public final AtomicLong pongs = new AtomicLong();
+    public final AtomicLong idleTimeouts = new AtomicLong();
+    private volatile long lastRttNanos = -1;
+    private volatile long smoothedRttNanos = -1;
+
+    public void recordHandshake(long nanos, boolean resumed) {
+        handshakes.incrementAndGet();
+        handshakeNanos.addAndGet(nanos);
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+            resumedHandshakeNanos.addAndGet(nanos);
+        }
+    }
+
+    public void recordRtt(long nanos) {
+        pongs.incrementAndGet();
+        lastRttNanos = nanos;
+        // Same smoothing as TCP's SRTT so one slow pong doesn't swamp the display.
+        smoothedRttNanos = smoothedRttNanos < 0 ? nanos : (7 * smoothedRttNanos + nanos) / 8;
+    }
+
+    /**
+     * @return the round trip time of the latest ping, or -1 if no pong has arrived yet.
+     */
+    public long getLastRttMillis() {
+        return lastRttNanos < 0 ? -1 : lastRttNanos / 1000000;
+    }
+
+    public long getSmoothedRttMillis() {
+        return smoothedRttNanos < 0 ? -1 : smoothedRttNanos / 1000000;
+    }
+
+    public String rttString() {
+        if (smoothedRttNanos < 0) {
+            return "no RTT samples";
+        }
+        return String.format("RTT %sms (last %sms, %d/%d pings answered, %d idle timeouts)", getSmoothedRttMillis(),
+                getLastRttMillis(), pongs.get(), pings.get(), idleTimeouts.get());
+    }
+
+    public String toString() {
+        long count = handshakes.get();
+        if (count == 0) {
+            return "no TLS handshakes";
+        }
+        long resumed = resumedHandshakes.get();
+        long full = count - resumed;
+        return String.format("%d TLS handshakes: %d full averaging %.1fms, %d resumed averaging %.1fms", count,
+                full, full == 0 ? 0 : (handshakeNanos.get() - resumedHandshakeNanos.get()) / (double) full / 1e6,
+                resumed, resumed == 0 ? 0 : resumedHandshakeNanos.get() / (double) resumed / 1e6);
+    }
+}
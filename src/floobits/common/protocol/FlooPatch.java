@@ -19,10 +19,10 @@ public class FlooPatch implements Base  {
 
     public FlooPatch(){}
 
-    public FlooPatch (String patch, String md5_before, Buf buf) {
+    public FlooPatch (String patch, String md5_before, String md5_after, Buf buf) {
         this.path = buf.path;
         this.md5_before = md5_before;
-        this.md5_after = buf.md5;
+        this.md5_after = md5_after;
         this.id = buf.id;
         this.patch = patch;
     }
@@ -0,0 +1,209 @@
+package floobits.common.protocol;
+
+import floobits.common.protocol.codec.OutboundStats;
+import floobits.common.protocol.json.receive.*;
+import floobits.common.protocol.json.send.GetBuf;
+import floobits.common.protocol.json.send.Ping;
+import floobits.utilities.Flog;
+import io.fletty.channel.Channel;
+import io.fletty.channel.ChannelFuture;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sits in front of the channel and decides what gets written next. Keystroke patches go first, then saves and other
+ * control messages, then highlights, and whole buffer transfers last, so a big upload can't hold up everyone's edits.
+ *
+ * Draining stops while the channel is not writable and picks up again from Connection.channelWritabilityChanged, so
+ * queued uploads wait here instead of piling up in the channel's outbound buffer.
+ */
+public class OutboundScheduler {
+    enum Lane {
+        PATCH, CONTROL, HIGHLIGHT, BULK
+    }
+
+    private final Connection connection;
+    private final OutboundStats stats;
+    private final EnumMap<Lane, ArrayDeque<Serializable>> lanes = new EnumMap<Lane, ArrayDeque<Serializable>>(Lane.class);
+    // Buffer id -> queued set_bufs. Anything else for that buffer waits behind them so the server sees it in order.
+    private final HashMap<Integer, Integer> pendingBulk = new HashMap<Integer, Integer>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private volatile boolean handshaking = false;
+
+    OutboundScheduler(Connection connection, OutboundStats stats) {
+        this.connection = connection;
+        this.stats = stats;
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new ArrayDeque<Serializable>());
+        }
+    }
+
+    static Lane laneFor(Serializable obj) {
+        if (obj instanceof FlooPatch) {
+            return Lane.PATCH;
+        }
+        if (obj instanceof FlooHighlight) {
+            return Lane.HIGHLIGHT;
+        }
+        if (obj instanceof SetBuf || obj instanceof CreateBuf) {
+            return Lane.BULK;
+        }
+        return Lane.CONTROL;
+    }
+
+    static Integer bufferId(Serializable obj) {
+        if (obj instanceof FlooPatch) {
+            return ((FlooPatch) obj).id;
+        }
+        if (obj instanceof FlooHighlight) {
+            return ((FlooHighlight) obj).id;
+        }
+        if (obj instanceof SetBuf) {
+            return ((SetBuf) obj).id;
+        }
+        if (obj instanceof SaveBuf) {
+            return ((SaveBuf) obj).id;
+        }
+        if (obj instanceof GetBuf) {
+            return ((GetBuf) obj).id;
+        }
+        if (obj instanceof DeleteBuf) {
+            return ((DeleteBuf) obj).id;
+        }
+        if (obj instanceof RenameBuf) {
+            return ((RenameBuf) obj).id;
+        }
+        return null;
+    }
+
+    public void write(Serializable obj) {
+        Lane lane = laneFor(obj);
+        Integer id = bufferId(obj);
+        synchronized (this) {
+            if (id != null) {
+                Integer pending = pendingBulk.get(id);
+                if (lane == Lane.BULK) {
+                    pendingBulk.put(id, pending == null ? 1 : pending + 1);
+                } else if (pending != null) {
+                    lane = Lane.BULK;
+                }
+            }
+            lanes.get(lane).add(obj);
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Drops everything queued for the previous channel. While handshaking only control messages are written, so the
+     * auth goes out before any patch that was typed during the reconnect.
+     */
+    synchronized void reset(boolean handshaking) {
+        for (ArrayDeque<Serializable> queue : lanes.values()) {
+            queue.clear();
+        }
+        pendingBulk.clear();
+        this.handshaking = handshaking;
+    }
+
+    void handshakeComplete() {
+        if (!handshaking) {
+            return;
+        }
+        handshaking = false;
+        scheduleDrain();
+    }
+
+    public synchronized int backlog() {
+        int size = 0;
+        for (ArrayDeque<Serializable> queue : lanes.values()) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    private synchronized Serializable poll() {
+        for (Lane lane : Lane.values()) {
+            if (handshaking && lane != Lane.CONTROL) {
+                continue;
+            }
+            Serializable obj = lanes.get(lane).poll();
+            if (obj == null) {
+                continue;
+            }
+            if (lane == Lane.BULK) {
+                Integer id = bufferId(obj);
+                Integer pending = id == null ? null : pendingBulk.get(id);
+                if (pending != null && laneFor(obj) == Lane.BULK) {
+                    if (pending <= 1) {
+                        pendingBulk.remove(id);
+                    } else {
+                        pendingBulk.put(id, pending - 1);
+                    }
+                }
+            }
+            return obj;
+        }
+        return null;
+    }
+
+    void scheduleDrain() {
+        final Channel channel = connection.channel;
+        if (channel == null) {
+            return;
+        }
+        if (!drainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        final long scheduledAt = System.nanoTime();
+        Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drainScheduled.set(false);
+                drain(channel, scheduledAt);
+            }
+        };
+        try {
+            if (Connection.flushWindow > 0) {
+                channel.eventLoop().schedule(drain, Connection.flushWindow, TimeUnit.MILLISECONDS);
+            } else {
+                channel.eventLoop().execute(drain);
+            }
+        } catch (RejectedExecutionException e) {
+            drainScheduled.set(false);
+            Flog.warn("Could not schedule a write, event loop is shutting down.");
+        }
+    }
+
+    private void drain(Channel channel, long scheduledAt) {
+        if (!channel.isActive()) {
+            return;
+        }
+        int written = 0;
+        while (channel.isWritable()) {
+            Serializable obj = poll();
+            if (obj == null) {
+                break;
+            }
+            ChannelFuture future = channel.write(obj);
+            if (obj instanceof Ping) {
+                future.addListener(connection.pingWritten);
+            }
+            written++;
+            if (laneFor(obj) == Lane.BULK) {
+                // SslHandler holds writes until a flush, so flush big ones right away to keep isWritable() honest.
+                channel.flush();
+            }
+        }
+        if (written == 0) {
+            return;
+        }
+        channel.flush();
+        stats.recordFlush(written, System.nanoTime() - scheduledAt);
+    }
+}
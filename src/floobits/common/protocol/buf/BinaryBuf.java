@@ -35,40 +35,46 @@ public class BinaryBuf extends Buf <byte[]> {
         md5 = DigestUtils.md5Hex(bytes);
     }
 
+    /**
+     * Called in the write action, from this buffer's lane.
+     */
     public void write() {
-        context.writeThread(new Runnable() {
-            @Override
-            public void run() {
-                if (!isPopulated()) {
-                    Flog.warn("Unable to write %s because it's not populated yet.", path);
-                    return;
-                }
-                IFile virtualFile = getOrCreateFile();
-                if (virtualFile == null) {
-                    context.errorMessage("Unable to write file. virtualFile is null.");
-                    return;
-                }
-                FlooHandler flooHandler = context.getFlooHandler();
-                if (flooHandler == null) {
-                    return;
-                }
-                synchronized (context) {
-                    try {
-                        context.setListener(false);
-                        if (!virtualFile.setBytes(buf)) {
-                            Flog.warn("Writing binary content to disk failed. %s", path);
-                        }
-                    } finally {
-                        context.setListener(true);
-                    }
+        if (!isPopulated()) {
+            Flog.warn("Unable to write %s because it's not populated yet.", path);
+            return;
+        }
+        IFile virtualFile = getOrCreateFile();
+        if (virtualFile == null) {
+            context.errorMessage("Unable to write file. virtualFile is null.");
+            return;
+        }
+        FlooHandler flooHandler = context.getFlooHandler();
+        if (flooHandler == null) {
+            return;
+        }
+        String absPath = virtualFile.getPath();
+        synchronized (this) {
+            try {
+                context.suppressListener(absPath);
+                if (!virtualFile.setBytes(buf)) {
+                    Flog.warn("Writing binary content to disk failed. %s", path);
                 }
+            } finally {
+                context.resumeListener(absPath);
             }
-        });
+        }
     }
 
-    synchronized public void set (String s, String md5) {
-        buf = s == null ? new byte[]{} : Base64.decodeBase64(s.getBytes(Charset.forName("UTF-8")));
-        this.md5 = md5;
+    public void set (String s, String md5) {
+        set(decode(s), md5);
+    }
+
+    public byte[] decode (String s) {
+        return s == null ? new byte[]{} : Base64.decodeBase64(s.getBytes(Charset.forName("UTF-8")));
+    }
+
+    public void setDecoded (byte[] s, String md5) {
+        set(s, md5);
     }
 
     synchronized public void set (byte[] s, String md5) {
@@ -76,6 +76,14 @@ public abstract class Buf <T> {
     abstract public void read ();
     abstract public void write();
     abstract public void set (String s, String md5);
+    /**
+     * @return s as this buffer holds it. Doesn't touch the buffer, so it can run off the UI thread.
+     */
+    abstract public T decode (String s);
+    /**
+     * Sets the buffer to text decode already converted.
+     */
+    abstract public void setDecoded (T buf, String md5);
     abstract public void patch (FlooPatch res);
     abstract public void send_patch (IFile virtualFile);
     abstract public String serialize();
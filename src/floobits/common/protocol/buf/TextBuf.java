@@ -1,7 +1,10 @@
 package floobits.common.protocol.buf;
 
 import floobits.common.Constants;
+import floobits.common.EditorScheduler;
 import floobits.common.Encoding;
+import floobits.common.Hashing;
+import floobits.common.RunLater;
 import floobits.common.OutboundRequestHandler;
 import floobits.common.dmp.FlooDmp;
 import floobits.common.dmp.FlooPatchPosition;
@@ -11,14 +14,80 @@ import floobits.common.interfaces.IDoc;
 import floobits.common.interfaces.IFile;
 import floobits.common.protocol.FlooPatch;
 import floobits.utilities.Flog;
-import org.apache.commons.codec.digest.DigestUtils;
+import io.fletty.util.concurrent.ScheduledFuture;
 
+import java.util.ArrayDeque;
 import java.util.LinkedList;
 import java.util.List;
 
 
 public class TextBuf extends Buf<String> {
     protected static FlooDmp dmp = new FlooDmp();
+    // Editor changes within this many ms of the first unsent one go out as one patch. 0 sends every change.
+    public static int coalesceWindow = 50;
+    // Send right away once the changed region is this many chars, no matter the window.
+    public static int coalesceMaxChars = 4096;
+    // Full diffs where either side is longer than this go line by line first. See FlooDmp.diff_lines.
+    public static int lineDiffThreshold = 100000;
+    // Past this, typically edits replayed after a reconnect, patience diff. See FlooDmp.diff_patience.
+    public static int patienceDiffThreshold = 1000000;
+
+    // Text the server last got from us while changes are being held back, or null if nothing is pending.
+    // buf stays at it until flush builds the new text, so an edit costs what its region does, not the document.
+    private String pendingBase;
+    private int pendingEvents;
+    // The held back changes turn pendingBase[pendingStart, pendingBaseEnd) into pendingText.
+    private int pendingStart;
+    private int pendingBaseEnd;
+    private StringBuilder pendingText;
+    private ScheduledFuture pendingFlush;
+
+    // Outbound patches are hashed and diffed on the hashing thread, so md5 lags behind buf until it catches up.
+    // md5Current says whether md5 is the hash of buf. set() and read() bump version so a late hash for text that was
+    // replaced meanwhile doesn't overwrite md5.
+    private boolean md5Current = true;
+    private int version;
+    private int sent;
+    // Only touched on the hashing thread: md5 of the text the last queued patch produced.
+    private String lastSentMd5;
+
+    // Remote patches in arrival order, each with its action already queued in the editor. The head is the next to
+    // be applied.
+    private final ArrayDeque<RemotePatch> remotePatches = new ArrayDeque<RemotePatch>();
+    // Bumped when a get_buf drops remotePatches, so work prepared for them is thrown away.
+    private int remoteGeneration;
+    // A hashing thread task is preparing remotePatches.
+    private boolean preparing;
+    // Patches are prepared at most this far ahead of the one being applied, each holding a copy of the text.
+    private static final int MAX_PREPARED_AHEAD = 8;
+    // Times phase two waits for phase one against the current text before applying the patch the old way.
+    private static final int MAX_PREPARE_ATTEMPTS = 3;
+    private EditorScheduler editor;
+    // The document's modification stamp when it last held buf, or -1 if that isn't known.
+    private long docStamp = -1;
+
+    private static class RemotePatch {
+        final FlooPatch res;
+        // Set on the hashing thread: the text the patch was prepared against, and the result.
+        String snapshot;
+        PreparedPatch prepared;
+        // Phase two found it unprepared or stale and holds the buffer's lane until it's prepared again.
+        boolean waiting;
+        int attempts;
+
+        RemotePatch(FlooPatch res) {
+            this.res = res;
+        }
+    }
+
+    private static class PreparedPatch {
+        FlooPatchPosition[] positions;
+        String text;
+        String md5;
+        boolean clean = true;
+        // The positions turn the text it was prepared against into text.
+        boolean exact;
+    }
 
     public TextBuf(String path, Integer id, String buf, String md5, IContext context, OutboundRequestHandler outbound) {
         super(path, id, buf, md5, context, outbound);
@@ -34,8 +103,17 @@ public class TextBuf extends Buf<String> {
         if (d == null) {
             return;
         }
-        this.buf = d.getText();
-        this.md5 = DigestUtils.md5Hex(this.buf);
+        long stamp = d.getModificationStamp();
+        String text = d.getText();
+        String textMd5 = Hashing.md5Hex(text);
+        synchronized (this) {
+            clearPending();
+            version++;
+            md5Current = true;
+            this.buf = text;
+            this.md5 = textMd5;
+            docStamp = stamp;
+        }
     }
 
     public void write() {
@@ -46,13 +124,16 @@ public class TextBuf extends Buf<String> {
 
         IDoc d = getVirtualDoc();
         if (d != null) {
-            synchronized (context) {
+            String absPath = context.absPath(path);
+            synchronized (this) {
+                flush();
                 try {
-                    context.setListener(false);
+                    context.suppressListener(absPath);
                     d.setReadOnly(false);
                     d.setText(buf);
+                    docStamp = d.getModificationStamp();
                 } finally {
-                    context.setListener(true);
+                    context.resumeListener(absPath);
                 }
                 return;
             }
@@ -69,12 +150,26 @@ public class TextBuf extends Buf<String> {
         }
     }
 
-    synchronized public void set(String s, String newMD5) {
-        buf = s == null ? null : Constants.NEW_LINE.matcher(s).replaceAll("\n");
+    public void set(String s, String newMD5) {
+        setDecoded(decode(s), newMD5);
+    }
+
+    public String decode(String s) {
+        return s == null ? null : Constants.NEW_LINE.matcher(s).replaceAll("\n");
+    }
+
+    synchronized public void setDecoded(String s, String newMD5) {
+        clearPending();
+        version++;
+        md5Current = true;
+        buf = s;
         md5 = newMD5;
+        // Until it's written, the document may not hold the new text.
+        docStamp = -1;
     }
 
-    public String serialize() {
+    synchronized public String serialize() {
+        flush();
         return buf;
     }
 
@@ -88,24 +183,186 @@ public class TextBuf extends Buf<String> {
         send_patch(d.getText());
     }
 
-    public void send_patch(String current) {
+    synchronized public void send_patch(String current) {
+        String previous = pendingBase != null ? pendingBase : buf;
+        int events = pendingEvents + 1;
+        clearPending();
+        send_patch(previous, current, null, events);
+    }
 
-        String before_md5;
-        String textPatch;
-        String after_md5;
+    /**
+     * Takes the change an editor reported at offset without reading, copying or diffing the whole document. Changes
+     * are held for coalesceWindow ms and sent as one patch. Until then they only touch the changed region, which is
+     * flushed before it grows past coalesceMaxChars.
+     * @param newLength the document's length after the change, to check the buffer is still in sync with it.
+     * @return false if the buffer doesn't match the document, in which case nothing was sent.
+     */
+    synchronized public boolean send_patch(int offset, String oldFragment, String newFragment, int newLength) {
+        if (buf == null || md5 == null) {
+            return false;
+        }
+        int end = offset + oldFragment.length();
+        if (pendingBase != null && Math.max(pendingStart + pendingText.length(), end)
+                - Math.min(pendingStart, offset) > coalesceMaxChars) {
+            flush();
+        }
+        if (pendingBase == null) {
+            String previous = buf;
+            if (offset < 0 || end > previous.length()
+                    || previous.length() - oldFragment.length() + newFragment.length() != newLength
+                    || !previous.startsWith(oldFragment, offset)) {
+                return false;
+            }
+            if (coalesceWindow <= 0) {
+                String current = new StringBuilder(newLength)
+                        .append(previous, 0, offset)
+                        .append(newFragment)
+                        .append(previous, end, previous.length())
+                        .toString();
+                send_patch(previous, current, dmp.patch_make(previous, offset, oldFragment, newFragment), 1);
+                return true;
+            }
+            pendingBase = previous;
+            pendingStart = offset;
+            pendingBaseEnd = end;
+            pendingText = new StringBuilder(newFragment);
+            pendingEvents = 1;
+            pendingFlush = context.setTimeout(coalesceWindow, new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        } else {
+            int length = pendingBase.length() - (pendingBaseEnd - pendingStart) + pendingText.length();
+            if (offset < 0 || end > length || length - oldFragment.length() + newFragment.length() != newLength
+                    || !pendingRegionMatches(offset, oldFragment)) {
+                return false;
+            }
+            // Grow the region to cover the change. Outside of it the text is still pendingBase's.
+            if (offset < pendingStart) {
+                pendingText.insert(0, pendingBase, offset, pendingStart);
+                pendingStart = offset;
+            }
+            int regionEnd = pendingStart + pendingText.length();
+            if (end > regionEnd) {
+                pendingText.append(pendingBase, pendingBaseEnd, pendingBaseEnd + end - regionEnd);
+                pendingBaseEnd += end - regionEnd;
+            }
+            pendingText.replace(offset - pendingStart, end - pendingStart, newFragment);
+            pendingEvents++;
+        }
+        if (pendingFlush == null || pendingText.length() >= coalesceMaxChars) {
+            flush();
+        }
+        return true;
+    }
 
-        String previous = buf;
-        before_md5 = md5;
-        after_md5 = DigestUtils.md5Hex(current);
-        LinkedList<diff_match_patch.Patch> patches = dmp.patch_make(previous, current);
-        textPatch = dmp.patch_toText(patches);
+    /**
+     * @return whether the text with the held back changes has s at offset.
+     */
+    private boolean pendingRegionMatches(int offset, String s) {
+        int regionEnd = pendingStart + pendingText.length();
+        for (int i = 0; i < s.length(); i++) {
+            int at = offset + i;
+            char c;
+            if (at < pendingStart) {
+                c = pendingBase.charAt(at);
+            } else if (at < regionEnd) {
+                c = pendingText.charAt(at - pendingStart);
+            } else {
+                c = pendingBase.charAt(pendingBaseEnd + at - regionEnd);
+            }
+            if (c != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        set(current, after_md5);
-        if (before_md5.equals(after_md5)) {
-            Flog.log("Not patching %s because no change.", path);
+    /**
+     * Sends any held back changes now, and brings buf up to date with them. Call before anything the server has to
+     * see after them, like a save, a highlight or applying a remote patch, and before reading buf.
+     */
+    synchronized public void flush() {
+        if (pendingBase == null) {
             return;
         }
-       outbound.patch(textPatch, before_md5, this);
+        String base = pendingBase;
+        String oldFragment = base.substring(pendingStart, pendingBaseEnd);
+        String newFragment = pendingText.toString();
+        String current = new StringBuilder(base.length() - oldFragment.length() + newFragment.length())
+                .append(base, 0, pendingStart)
+                .append(newFragment)
+                .append(base, pendingBaseEnd, base.length())
+                .toString();
+        int events = pendingEvents;
+        LinkedList<diff_match_patch.Patch> patches = dmp.patch_make(base, pendingStart, oldFragment, newFragment);
+        clearPending();
+        send_patch(base, current, patches, events);
+    }
+
+    private void clearPending() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        pendingBase = null;
+        pendingText = null;
+        pendingEvents = 0;
+    }
+
+    /**
+     * Moves buf to current right away. Hashing current, diffing if patches is null, and sending happen on the hashing
+     * thread, so the editor only pays for the snapshot.
+     */
+    private void send_patch(final String previous, final String current,
+                            final LinkedList<diff_match_patch.Patch> patches, final int events) {
+        final String before_md5 = md5Current ? md5 : null;
+        final boolean offline = outbound.isOffline();
+        final int sentVersion = version;
+        final int sentCount = ++sent;
+        md5Current = false;
+        buf = current;
+        Hashing.submit(new Runnable() {
+            @Override
+            public void run() {
+                String before = before_md5 != null ? before_md5 : lastSentMd5;
+                String after = Hashing.md5Hex(current);
+                lastSentMd5 = after;
+                synchronized (TextBuf.this) {
+                    if (version == sentVersion && sent == sentCount) {
+                        md5 = after;
+                        md5Current = true;
+                    }
+                }
+                if (before == null) {
+                    Flog.warn("No md5 for %s, can't send patch.", path);
+                    return;
+                }
+                if (offline) {
+                    outbound.offlineChange(previous, before, TextBuf.this);
+                    return;
+                }
+                if (before.equals(after)) {
+                    Flog.log("Not patching %s because no change.", path);
+                    return;
+                }
+                String textPatch = dmp.patch_toText(patches != null ? patches : patch_make(previous, current));
+                outbound.patch(textPatch, before, after, current, TextBuf.this, events);
+            }
+        });
+    }
+
+    private static LinkedList<diff_match_patch.Patch> patch_make(String previous, String current) {
+        int length = Math.max(previous.length(), current.length());
+        if (length > patienceDiffThreshold) {
+            return dmp.patch_make_patience(previous, current);
+        }
+        if (length > lineDiffThreshold) {
+            return dmp.patch_make_lines(previous, current);
+        }
+        return dmp.patch_make(previous, current);
     }
 
     private void getBuf() {
@@ -125,9 +382,234 @@ public class TextBuf extends Buf<String> {
         });
     }
 
+    /**
+     * Applies a remote patch in two phases. Parsing, matching and hashing run on the hashing thread, against the text
+     * the patches before it leave. The write action then only checks that the document still holds that text and
+     * applies the positions. The editor action is queued here, so the patch keeps its place among the buffer's other
+     * work. If phase one isn't done by the time it runs, or buf moved since, the lane waits for phase one against the
+     * current text, up to MAX_PREPARE_ATTEMPTS times before the patch is applied the old way.
+     */
+    synchronized public void queuePatch(FlooPatch res, EditorScheduler editor) {
+        this.editor = editor;
+        final RemotePatch remote = new RemotePatch(res);
+        final int generation = remoteGeneration;
+        remotePatches.add(remote);
+        editor.queue(this, EditorScheduler.Priority.PATCH, new RunLater<Buf>() {
+            @Override
+            public void run(Buf b) {
+                applyRemote(remote, generation);
+            }
+        });
+        prepareRemote();
+    }
+
+    /**
+     * Drops the remote patches waiting to be applied. A get_buf's text already has them.
+     */
+    synchronized public void dropRemotePatches() {
+        RemotePatch head = remotePatches.peek();
+        if (head != null && head.waiting) {
+            // Its action is dropped or finds the generation moved on, either way the lane has to run again.
+            editor.resume(this);
+        }
+        remotePatches.clear();
+        remoteGeneration++;
+    }
+
+    private void prepareRemote() {
+        if (preparing) {
+            return;
+        }
+        preparing = true;
+        Hashing.submit(new Runnable() {
+            @Override
+            public void run() {
+                boolean done = false;
+                try {
+                    while (prepareOne()) {
+                        // Keep going while there's a patch whose base text is known.
+                    }
+                    done = true;
+                } finally {
+                    if (!done) {
+                        synchronized (TextBuf.this) {
+                            preparing = false;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs phase one for the first remote patch that hasn't had it, on the hashing thread.
+     * @return false once there's nothing to prepare until another patch is applied or queued.
+     */
+    private boolean prepareOne() {
+        RemotePatch next = null;
+        String base = null;
+        String baseMd5 = null;
+        int generation;
+        synchronized (this) {
+            RemotePatch previous = null;
+            int ahead = 0;
+            for (RemotePatch remote : remotePatches) {
+                if (remote.prepared == null) {
+                    next = remote;
+                    break;
+                }
+                previous = remote;
+                ahead++;
+            }
+            if (next != null && ahead < MAX_PREPARED_AHEAD) {
+                if (previous == null) {
+                    // Our held back changes go out before we apply anything on top of them.
+                    flush();
+                    base = buf;
+                    baseMd5 = md5Current ? md5 : null;
+                } else if (previous.prepared.clean) {
+                    base = previous.prepared.text;
+                    baseMd5 = previous.prepared.md5;
+                }
+            }
+            if (base == null) {
+                preparing = false;
+                return false;
+            }
+            generation = remoteGeneration;
+        }
+        PreparedPatch prepared;
+        try {
+            prepared = prepare(next.res, base, baseMd5);
+        } catch (Exception e) {
+            Flog.warn("Can't prepare patch for %s: %s", path, e);
+            prepared = new PreparedPatch();
+            prepared.clean = false;
+        }
+        synchronized (this) {
+            if (generation == remoteGeneration) {
+                next.snapshot = base;
+                next.prepared = prepared;
+                if (next.waiting) {
+                    next.waiting = false;
+                    editor.resume(this);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Phase two, in the write action, holding this buffer's lock.
+     */
+    private void applyRemote(RemotePatch remote, int generation) {
+        if (generation != remoteGeneration) {
+            return;
+        }
+        if (remotePatches.peek() != remote) {
+            Flog.warn("Remote patch for %s out of order.", path);
+        }
+        // Local changes still held back are in the document but not yet in buf.
+        flush();
+        if (buf != null && (remote.prepared == null || buf != remote.snapshot)
+                && remote.attempts < MAX_PREPARE_ATTEMPTS) {
+            // Phase one isn't done, or was done against text buf has moved on from. Wait for it against buf.
+            remote.attempts++;
+            remote.waiting = true;
+            // The patches after it were prepared on top of the stale text too.
+            for (RemotePatch queued : remotePatches) {
+                queued.prepared = null;
+                queued.snapshot = null;
+            }
+            editor.retryWhenResumed();
+            prepareRemote();
+            return;
+        }
+        remotePatches.remove(remote);
+        if (buf == null) {
+            Flog.warn("no buffer");
+            getBuf();
+        } else if (remote.prepared == null || buf != remote.snapshot || !apply(remote.res, remote.prepared)) {
+            patch(remote.res);
+        }
+        // The next patch may have been waiting on this one's text.
+        prepareRemote();
+    }
+
+    private PreparedPatch prepare(FlooPatch res, String text, String textMd5) {
+        PreparedPatch prepared = new PreparedPatch();
+        String md5Before = textMd5 != null ? textMd5 : Hashing.md5Hex(text);
+        if (!md5Before.equals(res.md5_before)) {
+            Flog.error("starting md5s don't match for %s. this is dangerous!", path);
+        }
+        List<diff_match_patch.Patch> patches =  dmp.patch_fromText(res.patch);
+        final Object[] results = dmp.patch_apply((LinkedList<diff_match_patch.Patch>) patches, text);
+        for (boolean clean : (boolean[]) results[1]) {
+            if (!clean) {
+                prepared.clean = false;
+                return prepared;
+            }
+        }
+        prepared.text = (String) results[0];
+        prepared.positions = (FlooPatchPosition[]) results[2];
+        prepared.exact = (Boolean) results[3];
+        prepared.md5 = Hashing.md5Hex(prepared.text);
+        return prepared;
+    }
+
+    /**
+     * Applies a prepared patch, if buf is the text it was prepared against.
+     * @return false if the document might not hold buf, so the patch has to be applied the old way.
+     */
+    private boolean apply(FlooPatch res, PreparedPatch prepared) {
+        if (forced_patch) {
+            return false;
+        }
+        IFile virtualFile = getVirtualFile();
+        if (virtualFile == null) {
+            return false;
+        }
+        IDoc d = context.iFactory.getDocument(virtualFile);
+        if (d == null) {
+            return false;
+        }
+        // Unless nothing has touched the document since it last held buf, compare the text.
+        if (virtualFile.exists() && (docStamp < 0 || d.getModificationStamp() != docStamp)
+                && !d.getText().equals(buf)) {
+            return false;
+        }
+        cancelTimeout();
+        if (!prepared.clean) {
+            Flog.log("Patch not clean for %s. Sending get_buf and setting readonly.", d);
+            getBuf();
+            return true;
+        }
+        if (!d.makeWritable()) {
+            Flog.info("Document: %s is not writable.", d);
+            return true;
+        }
+        String text = prepared.text;
+        String textMd5 = prepared.md5;
+        if (!d.patch(prepared.positions) || !prepared.exact || d.getTextLength() != text.length()
+                || hasCarriageReturn(prepared.positions)) {
+            text = d.getText();
+            textMd5 = Hashing.md5Hex(text);
+        }
+        long stamp = d.getModificationStamp();
+        if (!textMd5.equals(res.md5_after)) {
+            Flog.info("md5FromDoc mismatch (ours %s remote %s)", textMd5, res.md5_after);
+            setGetBufTimeout();
+        }
+        set(text, textMd5);
+        docStamp = stamp;
+        Flog.log("Patched %s", res.path);
+        return true;
+    }
+
     public void patch(final FlooPatch res) {
         final TextBuf b = this;
         Flog.info("Got _on_patch");
+        flush();
 
         String oldText = buf;
         IFile virtualFile = b.getVirtualFile();
@@ -143,6 +625,7 @@ public class TextBuf extends Buf<String> {
             return;
         }
         String viewText;
+        boolean inSync = true;
         if (!virtualFile.exists()) {
             viewText = oldText;
         } else {
@@ -154,12 +637,16 @@ public class TextBuf extends Buf<String> {
                 oldText = viewText;
                 b.send_patch(viewText);
                 Flog.warn("Sending force patch for %s. this is dangerous!", b.path);
+            } else {
+                inSync = false;
             }
         }
 
         b.cancelTimeout();
 
-        String md5Before = DigestUtils.md5Hex(viewText);
+        // The document is what we last sent or were sent, so md5 already covers it unless a hash is still queued.
+        // Out of sync, the diagnostic is about the document.
+        String md5Before = inSync && oldText == buf && md5Current ? md5 : Hashing.md5Hex(viewText);
         if (!md5Before.equals(res.md5_before)) {
             Flog.error("starting md5s don't match for %s. this is dangerous!", b.path);
         }
@@ -169,6 +656,7 @@ public class TextBuf extends Buf<String> {
         final String patchedContents = (String) results[0];
         final boolean[] patchesClean = (boolean[]) results[1];
         final FlooPatchPosition[] positions = (FlooPatchPosition[]) results[2];
+        final boolean exact = (Boolean) results[3];
 
         for (boolean clean : patchesClean) {
             if (!clean) {
@@ -177,30 +665,44 @@ public class TextBuf extends Buf<String> {
                 return;
             }
         }
-        // XXX: If patchedContents have carriage returns this will be a problem:
-        String md5After = DigestUtils.md5Hex(patchedContents);
-        if (!md5After.equals(res.md5_after)) {
-            Flog.info("MD5 after mismatch (ours %s remote %s)", md5After, res.md5_after);
-        }
 
         if (!d.makeWritable()) {
             Flog.info("Document: %s is not writable.", d);
             return;
         }
 
-        String text = d.patch(positions);
-        if (text == null) {
-            getBuf();
-            return;
+        boolean applied = d.patch(positions);
+        long stamp = d.getModificationStamp();
+        // If the document started out as the text we patched and took every position, it now holds patchedContents
+        // and there's no need to copy it back out. That takes exact matches: a fuzzy match's position only spans its
+        // changes. Carriage returns are stripped on the way into the document.
+        String text;
+        if (applied && inSync && exact && d.getTextLength() == patchedContents.length()
+                && !hasCarriageReturn(positions)) {
+            text = patchedContents;
+        } else {
+            text = d.getText();
         }
 
-        String md5FromDoc = DigestUtils.md5Hex(text);
+        String md5FromDoc = Hashing.md5Hex(text);
         if (!md5FromDoc.equals(res.md5_after)) {
             Flog.info("md5FromDoc mismatch (ours %s remote %s)", md5FromDoc, res.md5_after);
             b.setGetBufTimeout();
         }
 
         b.set(text, md5FromDoc);
+        if (virtualFile.exists()) {
+            docStamp = stamp;
+        }
         Flog.log("Patched %s", res.path);
     }
+
+    private static boolean hasCarriageReturn(FlooPatchPosition[] positions) {
+        for (FlooPatchPosition position : positions) {
+            if (position.text.indexOf('\r') >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
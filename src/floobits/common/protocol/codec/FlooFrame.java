@@ -0,0 +1,30 @@
+package floobits.common.protocol.codec;
+
+import com.google.gson.JsonObject;
+import floobits.common.protocol.Base;
+
+/**
+ * One decoded line of the floobits protocol. Large messages arrive already bound to their protocol class in
+ * body, everything else is handed over as a JsonObject.
+ */
+public class FlooFrame {
+    public final String name;
+    public final JsonObject json;
+    public final Base body;
+
+    public FlooFrame(String name, JsonObject json) {
+        this.name = name;
+        this.json = json;
+        this.body = null;
+    }
+
+    public FlooFrame(String name, Base body) {
+        this.name = name;
+        this.json = null;
+        this.body = body;
+    }
+
+    public boolean isTyped() {
+        return body != null;
+    }
+}
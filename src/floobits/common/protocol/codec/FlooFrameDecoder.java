@@ -0,0 +1,130 @@
+package floobits.common.protocol.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import floobits.common.protocol.Base;
+import floobits.common.protocol.FlooPatch;
+import floobits.common.protocol.json.receive.GetBufResponse;
+import floobits.common.protocol.json.send.CreateBufResponse;
+import floobits.common.protocol.json.send.RoomInfoResponse;
+import floobits.utilities.Flog;
+import io.fletty.buffer.ByteBuf;
+import io.fletty.buffer.ByteBufInputStream;
+import io.fletty.buffer.ByteBufProcessor;
+import io.fletty.channel.ChannelHandlerContext;
+import io.fletty.handler.codec.ByteToMessageDecoder;
+import io.fletty.handler.codec.TooLongFrameException;
+import io.fletty.util.CharsetUtil;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Splits the inbound stream on \n and decodes each line straight out of the ByteBuf into a FlooFrame.
+ *
+ * The name is found with a first pass that skips over every other value without materializing it. Messages that can
+ * carry whole buffers are then bound directly to their protocol class, so a 10MB get_buf never exists as a String or
+ * a JsonObject.
+ */
+public class FlooFrameDecoder extends ByteToMessageDecoder {
+    private static final Gson gson = new Gson();
+    private static final HashMap<String, Class<? extends Base>> typedEvents = new HashMap<String, Class<? extends Base>>();
+    static {
+        typedEvents.put("room_info", RoomInfoResponse.class);
+        typedEvents.put("get_buf", GetBufResponse.class);
+        typedEvents.put("create_buf", CreateBufResponse.class);
+        typedEvents.put("patch", FlooPatch.class);
+    }
+
+    private final int maxLength;
+    private boolean discarding = false;
+    private int discardedBytes = 0;
+
+    public FlooFrameDecoder(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        int eol = in.forEachByte(in.readerIndex(), in.readableBytes(), ByteBufProcessor.FIND_LF);
+        if (discarding) {
+            if (eol < 0) {
+                discardedBytes += in.readableBytes();
+                in.skipBytes(in.readableBytes());
+                return;
+            }
+            discardedBytes += eol - in.readerIndex();
+            in.readerIndex(eol + 1);
+            discarding = false;
+            fail(ctx, discardedBytes);
+            discardedBytes = 0;
+            return;
+        }
+        if (eol < 0) {
+            if (in.readableBytes() > maxLength) {
+                discarding = true;
+                discardedBytes = in.readableBytes();
+                in.skipBytes(in.readableBytes());
+            }
+            return;
+        }
+        int length = eol - in.readerIndex();
+        if (length > maxLength) {
+            in.readerIndex(eol + 1);
+            fail(ctx, length);
+            return;
+        }
+        ByteBuf frame = in.slice(in.readerIndex(), length);
+        in.readerIndex(eol + 1);
+        if (length == 0) {
+            return;
+        }
+        FlooFrame flooFrame = decodeFrame(frame);
+        if (flooFrame != null) {
+            out.add(flooFrame);
+        }
+    }
+
+    private void fail(ChannelHandlerContext ctx, int length) {
+        ctx.fireExceptionCaught(new TooLongFrameException(
+                String.format("frame length (%d) exceeds the allowed maximum (%d)", length, maxLength)));
+    }
+
+    static FlooFrame decodeFrame(ByteBuf frame) throws IOException {
+        String name = readName(frame);
+        if (name == null) {
+            Flog.warn("No name for receive, ignoring");
+            return null;
+        }
+        JsonReader reader = newReader(frame);
+        Class<? extends Base> type = typedEvents.get(name);
+        if (type != null) {
+            Base body = gson.fromJson(reader, type);
+            return new FlooFrame(name, body);
+        }
+        JsonElement element = new JsonParser().parse(reader);
+        return new FlooFrame(name, element.getAsJsonObject());
+    }
+
+    private static String readName(ByteBuf frame) throws IOException {
+        JsonReader reader = newReader(frame);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("name") && reader.peek() == JsonToken.STRING) {
+                return reader.nextString();
+            }
+            reader.skipValue();
+        }
+        return null;
+    }
+
+    private static JsonReader newReader(ByteBuf frame) {
+        // ByteBufInputStream moves the reader index of what it is given, so every pass reads its own duplicate.
+        return new JsonReader(new InputStreamReader(new ByteBufInputStream(frame.duplicate()), CharsetUtil.UTF_8));
+    }
+}
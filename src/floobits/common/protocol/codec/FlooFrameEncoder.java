@@ -0,0 +1,62 @@
+package floobits.common.protocol.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import io.fletty.buffer.ByteBuf;
+import io.fletty.channel.ChannelHandlerContext;
+import io.fletty.channel.ChannelOutboundHandlerAdapter;
+import io.fletty.channel.ChannelPromise;
+
+import java.io.Serializable;
+
+/**
+ * Serializes outbound messages as one line of JSON, UTF-8 encoded straight into a pooled ByteBuf. Gson is thread safe
+ * and caches the reflective adapter for every class it has seen, so all connections share one instance.
+ *
+ * The buffer is sized from what earlier messages of the same type needed. A plain MessageToByteEncoder starts from an
+ * empty buffer and regrows it several times for every keystroke.
+ */
+public class FlooFrameEncoder extends ChannelOutboundHandlerAdapter {
+    static final Gson gson = new Gson();
+    private static final int MIN_SIZE_HINT = 64;
+    private static final int MAX_SIZE_HINT = 64 * 1024;
+    private final OutboundStats stats;
+
+    public FlooFrameEncoder(OutboundStats stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof Serializable)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        String type = msg.getClass().getSimpleName();
+        int sizeHint = Math.max(MIN_SIZE_HINT, Math.min(MAX_SIZE_HINT, stats.averageBytes(type)));
+        ByteBuf out = ctx.alloc().ioBuffer(sizeHint);
+        int allocations;
+        try {
+            allocations = encode(msg, out);
+        } catch (Throwable e) {
+            out.release();
+            promise.setFailure(e);
+            return;
+        }
+        stats.record(type, out.readableBytes(), allocations);
+        ctx.write(out, promise);
+    }
+
+    static int encode(Object msg, ByteBuf out) {
+        int capacity = out.capacity();
+        Utf8ByteBufWriter writer = new Utf8ByteBufWriter(out);
+        gson.toJson(msg, msg.getClass(), new JsonWriter(writer));
+        writer.close();
+        out.writeByte('\n');
+        if (out.capacity() == capacity) {
+            return 1;
+        }
+        // The buffer roughly doubles every time it runs out of room, and every expansion is an allocation and a copy.
+        return 1 + 31 - Integer.numberOfLeadingZeros(out.capacity() / capacity);
+    }
+}
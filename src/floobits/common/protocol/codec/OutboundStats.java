@@ -0,0 +1,105 @@
+package floobits.common.protocol.codec;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes written and buffer allocations per outbound message type.
+ */
+public class OutboundStats {
+    public static class Counter {
+        public final AtomicLong messages = new AtomicLong();
+        public final AtomicLong bytes = new AtomicLong();
+        public final AtomicLong allocations = new AtomicLong();
+
+        public String toString() {
+            long count = messages.get();
+            if (count == 0) {
+                return "0 messages";
+            }
+            return String.format("%d messages, %d bytes/msg, %.2f allocations/msg", count, bytes.get() / count,
+                    allocations.get() / (double) count);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    public final AtomicLong flushes = new AtomicLong();
+    public final AtomicLong flushedMessages = new AtomicLong();
+    public final AtomicLong flushDelayNanos = new AtomicLong();
+    public final AtomicLong editorEvents = new AtomicLong();
+    public final AtomicLong editorPatches = new AtomicLong();
+
+    public void record(String type, int bytes, int allocations) {
+        Counter counter = counters.get(type);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = counters.putIfAbsent(type, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.messages.incrementAndGet();
+        counter.bytes.addAndGet(bytes);
+        counter.allocations.addAndGet(allocations);
+    }
+
+    public void recordFlush(int messages, long delayNanos) {
+        flushes.incrementAndGet();
+        flushedMessages.addAndGet(messages);
+        flushDelayNanos.addAndGet(delayNanos);
+    }
+
+    public void recordPatch(int events) {
+        editorPatches.incrementAndGet();
+        editorEvents.addAndGet(events);
+    }
+
+    public int averageBytes(String type) {
+        Counter counter = counters.get(type);
+        if (counter == null) {
+            return 0;
+        }
+        long count = counter.messages.get();
+        if (count == 0) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, counter.bytes.get() / count);
+    }
+
+    public Counter get(String type) {
+        return counters.get(type);
+    }
+
+    public Map<String, Counter> snapshot() {
+        return new TreeMap<String, Counter>(counters);
+    }
+
+    public void reset() {
+        counters.clear();
+        flushes.set(0);
+        flushedMessages.set(0);
+        flushDelayNanos.set(0);
+        editorEvents.set(0);
+        editorPatches.set(0);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        long flushCount = flushes.get();
+        if (flushCount > 0) {
+            sb.append(String.format("%d flushes, %.2f messages/flush, %.3fms average batching delay\n", flushCount,
+                    flushedMessages.get() / (double) flushCount, flushDelayNanos.get() / (double) flushCount / 1e6));
+        }
+        long patchCount = editorPatches.get();
+        if (patchCount > 0) {
+            sb.append(String.format("%d editor events in %d patches, %.2f events/patch\n", editorEvents.get(), patchCount,
+                    editorEvents.get() / (double) patchCount));
+        }
+        for (Map.Entry<String, Counter> entry : snapshot().entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
+        return sb.toString();
+    }
+}
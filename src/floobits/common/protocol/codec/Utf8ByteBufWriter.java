@@ -0,0 +1,79 @@
+package floobits.common.protocol.codec;
+
+import io.fletty.buffer.ByteBuf;
+
+import java.io.Writer;
+
+/**
+ * Encodes chars as UTF-8 directly into a ByteBuf so that serializing a message never builds a String or a byte[].
+ */
+class Utf8ByteBufWriter extends Writer {
+    private final ByteBuf out;
+    private char highSurrogate = 0;
+
+    Utf8ByteBufWriter(ByteBuf out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int c) {
+        writeChar((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            writeChar(chars[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            writeChar(str.charAt(i));
+        }
+    }
+
+    private void writeChar(char c) {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                out.writeByte(0xf0 | (codePoint >> 18));
+                out.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                out.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                out.writeByte(0x80 | (codePoint & 0x3f));
+                return;
+            }
+            // Unpaired surrogate, do what String.getBytes("UTF-8") does.
+            out.writeByte('?');
+        }
+        if (c < 0x80) {
+            out.writeByte(c);
+        } else if (c < 0x800) {
+            out.writeByte(0xc0 | (c >> 6));
+            out.writeByte(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            out.writeByte('?');
+        } else {
+            out.writeByte(0xe0 | (c >> 12));
+            out.writeByte(0x80 | ((c >> 6) & 0x3f));
+            out.writeByte(0x80 | (c & 0x3f));
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            out.writeByte('?');
+        }
+    }
+}
@@ -4,7 +4,10 @@ import com.google.gson.JsonObject;
 import floobits.common.FlooUrl;
 import floobits.common.OutboundRequestHandler;
 import floobits.common.interfaces.IContext;
+import floobits.common.protocol.Base;
 import floobits.common.protocol.Connection;
+import floobits.common.protocol.ConnectionStats;
+import floobits.common.protocol.codec.FlooFrame;
 import floobits.utilities.Flog;
 
 abstract public class BaseHandler {
@@ -41,6 +44,18 @@ abstract public class BaseHandler {
 
     protected abstract void _on_data(String name, JsonObject obj);
 
+    protected void _on_data(String name, Base body) {
+        Flog.log("No handler for %s", name);
+    }
+
+    public void on_data(FlooFrame frame) {
+        if (frame.isTyped()) {
+            _on_data(frame.name, frame.body);
+            return;
+        }
+        on_data(frame.name, frame.json);
+    }
+
     public void on_data(String name, JsonObject obj) {
         if (name.equals("error")) {
             _on_error(obj);
@@ -55,10 +70,16 @@ abstract public class BaseHandler {
 
     public abstract void on_connect();
 
+    public void on_disconnect() {}
+
     public FlooUrl getUrl() {
         return url;
     }
 
+    public ConnectionStats getConnectionStats() {
+        return conn == null ? null : conn.getConnectionStats();
+    }
+
     public void go() {
         isJoined = true;
     }
@@ -4,6 +4,7 @@ import com.google.gson.JsonObject;
 import floobits.common.*;
 import floobits.common.interfaces.IContext;
 import floobits.common.interfaces.IFile;
+import floobits.common.protocol.Base;
 import floobits.common.protocol.Connection;
 import floobits.common.protocol.json.send.FlooAuth;
 import floobits.utilities.Flog;
@@ -69,6 +70,13 @@ public class FlooHandler extends BaseHandler {
         conn.write(new FlooAuth(auth.get("username"), auth.get("api_key"), auth.get("secret"), url.owner, url.workspace));
     }
 
+    @Override
+    public void on_disconnect() {
+        if (outbound != null) {
+            outbound.setOffline(true);
+        }
+    }
+
     public void _on_data (String name, JsonObject obj) {
         Flog.debug("Calling %s", name);
         try {
@@ -79,6 +87,17 @@ public class FlooHandler extends BaseHandler {
         }
     }
 
+    @Override
+    protected void _on_data(String name, Base body) {
+        Flog.debug("Calling %s", name);
+        try {
+            inbound.on_data(name, body);
+        } catch (Throwable e) {
+            Flog.error(String.format("on_data error \n\n%s", e.toString()));
+            API.uploadCrash(this, context, e);
+        }
+    }
+
     @Override
     public void shutdown() {
         super.shutdown();
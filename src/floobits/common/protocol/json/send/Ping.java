@@ -0,0 +1,7 @@
+package floobits.common.protocol.json.send;
+
+import java.io.Serializable;
+
+public class Ping implements Serializable {
+    String name = "ping";
+}
@@ -244,6 +244,14 @@ public class ContextImpl extends IContext {
         listener.isListening.set(b);
     }
 
+    public void suppressListener(String absPath) {
+        listener.suppress(absPath);
+    }
+
+    public void resumeListener(String absPath) {
+        listener.resume(absPath);
+    }
+
     public void setSaving(boolean b) {
         listener.isSaving.set(b);
     }
@@ -225,16 +225,17 @@ public class DocImpl extends IDoc {
         if (highlight.textLength == 0) {
             return;
         }
-        synchronized (context) {
+        String path = getPath();
+        synchronized (document) {
             try {
-                context.setListener(false);
+                context.suppressListener(path);
                 highlight.force = highlight.force || highlight.following;
                 highlight.context = context;
                 applyHighlight_(highlight);
             } catch (Throwable e) {
                 Flog.error(e);
             } finally {
-                context.setListener(true);
+                context.resumeListener(path);
             }
         }
     }
@@ -266,6 +267,16 @@ public class DocImpl extends IDoc {
         return document.getText();
     }
 
+    @Override
+    public int getTextLength() {
+        return document.getTextLength();
+    }
+
+    @Override
+    public long getModificationStamp() {
+        return document.getModificationStamp();
+    }
+
     @Override
     public void setReadOnly(boolean readOnly) {
         document.setReadOnly(readOnly);
@@ -285,6 +296,14 @@ public class DocImpl extends IDoc {
         return false;
     }
 
+    /**
+     * @return the absolute path of the document's file, or null if it has none.
+     */
+    private String getPath() {
+        VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+        return file == null ? null : file.getPath();
+    }
+
     @Override
     public FileImpl getVirtualFile() {
         VirtualFile file = FileDocumentManager.getInstance().getFile(document);
@@ -294,24 +313,27 @@ public class DocImpl extends IDoc {
         return new FileImpl(file);
     }
 
-    public String patch(FlooPatchPosition[] positions) {
+    public boolean patch(FlooPatchPosition[] positions) {
+        boolean applied = true;
+        String path = getPath();
         for (FlooPatchPosition flooPatchPosition : positions) {
             final int start = Math.max(0, flooPatchPosition.start);
             int end_ld = Math.max(start + flooPatchPosition.end, start);
             end_ld = Math.min(end_ld, document.getTextLength());
             final String contents = Constants.NEW_LINE.matcher(flooPatchPosition.text).replaceAll("\n");
             final int finalEnd_ld = end_ld;
-            synchronized (context) {
+            synchronized (document) {
                 try {
-                    context.setListener(false);
+                    context.suppressListener(path);
                     document.replaceString(start, finalEnd_ld, contents);
                 } catch (Throwable e) {
                     Flog.error(e);
+                    applied = false;
                 } finally {
-                    context.setListener(true);
+                    context.resumeListener(path);
                 }
             }
         }
-        return document.getText();
+        return applied;
     }
 }
@@ -16,8 +16,11 @@ import floobits.utilities.Flog;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 public class FactoryImpl implements IFactory {
@@ -122,13 +125,22 @@ public class FactoryImpl implements IFactory {
         return true;
     }
 
+    @Override
+    public Collection<String> getFocusedPaths() {
+        List<String> paths = new ArrayList<String>();
+        for (VirtualFile file : FileEditorManager.getInstance(context.project).getSelectedFiles()) {
+            paths.add(file.getPath());
+        }
+        return paths;
+    }
+
     @Override
     public void removeHighlight(final Integer userId, final String path) {
         final IFile iFile = findFileByPath(path);
         if (iFile == null) {
             return;
         }
-        editor.queue(new Runnable() {
+        editor.queue(EditorScheduler.Priority.HIGHLIGHT, new Runnable() {
             @Override
             public void run() {
                 IDoc iDoc = getDocument(iFile);
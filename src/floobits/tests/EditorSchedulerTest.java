@@ -0,0 +1,351 @@
+package floobits.tests;
+
+import floobits.common.EditorScheduler;
+import floobits.common.RunLater;
+import floobits.common.protocol.buf.Buf;
+import floobits.common.protocol.buf.TextBuf;
+import io.fletty.channel.EventLoop;
+import io.fletty.channel.nio.NioEventLoopGroup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class EditorSchedulerTest {
+    /**
+     * Holds on to what would run in the write action until the test runs it.
+     */
+    private static class Context extends MockContext {
+        final ArrayDeque<Runnable> writes = new ArrayDeque<Runnable>();
+        final List<String> focused = new ArrayList<String>();
+
+        Context() {
+            super("/floobits/test", "a.txt", "");
+        }
+
+        @Override
+        public void writeThread(Runnable runnable) {
+            writes.add(runnable);
+        }
+
+        @Override
+        public Collection<String> getFocusedPaths() {
+            return focused;
+        }
+
+        void runWrites() {
+            while (!writes.isEmpty()) {
+                writes.poll().run();
+            }
+        }
+    }
+
+    /**
+     * Runs writes on one thread of its own, like the UI thread, and counts how many are waiting to run.
+     */
+    private static class ThreadedContext extends MockContext {
+        final ExecutorService ui = Executors.newSingleThreadExecutor();
+        final AtomicInteger waiting = new AtomicInteger();
+        final AtomicInteger scheduledTwice = new AtomicInteger();
+
+        ThreadedContext() {
+            super("/floobits/test", "a.txt", "");
+        }
+
+        @Override
+        public void writeThread(final Runnable runnable) {
+            if (waiting.incrementAndGet() > 1) {
+                scheduledTwice.incrementAndGet();
+            }
+            ui.execute(new Runnable() {
+                @Override
+                public void run() {
+                    waiting.decrementAndGet();
+                    runnable.run();
+                }
+            });
+        }
+    }
+
+    private Context context;
+    private EditorScheduler scheduler;
+    private final List<String> ran = new ArrayList<String>();
+    private int sliceMillis;
+
+    @Before
+    public void setUp() {
+        context = new Context();
+        scheduler = context.editor;
+        sliceMillis = EditorScheduler.sliceMillis;
+    }
+
+    @After
+    public void tearDown() {
+        EditorScheduler.sliceMillis = sliceMillis;
+    }
+
+    private TextBuf buf(String path, int id) {
+        return new TextBuf(path, id, "", null, context, null);
+    }
+
+    private void queue(Buf buf, EditorScheduler.Priority priority, final String name) {
+        scheduler.queue(buf, priority, new RunLater<Buf>() {
+            @Override
+            public void run(Buf arg) {
+                ran.add(name);
+            }
+        });
+    }
+
+    @Test
+    public void testRunsByPriority() {
+        context.focused.add(context.absPath("focused.txt"));
+        queue(buf("a.txt", 1), EditorScheduler.Priority.WRITE, "write");
+        queue(buf("b.txt", 2), EditorScheduler.Priority.HIGHLIGHT, "highlight");
+        queue(buf("c.txt", 3), EditorScheduler.Priority.PATCH, "patch");
+        queue(buf("focused.txt", 4), EditorScheduler.Priority.PATCH, "focused patch");
+        context.runWrites();
+        assertEquals(Arrays.asList("focused patch", "patch", "highlight", "write"), ran);
+    }
+
+    @Test
+    public void testKeepsEachBufferInOrder() {
+        TextBuf a = buf("a.txt", 1);
+        TextBuf b = buf("b.txt", 2);
+        queue(a, EditorScheduler.Priority.WRITE, "a get_buf");
+        queue(a, EditorScheduler.Priority.PATCH, "a patch");
+        queue(b, EditorScheduler.Priority.HIGHLIGHT, "b highlight");
+        queue(b, EditorScheduler.Priority.PATCH, "b patch");
+        context.runWrites();
+        assertEquals(4, ran.size());
+        assertTrue(ran.indexOf("a get_buf") < ran.indexOf("a patch"));
+        assertTrue(ran.indexOf("b highlight") < ran.indexOf("b patch"));
+    }
+
+    @Test
+    public void testKeysLanesByBufId() {
+        queue(buf("a.txt", 1), EditorScheduler.Priority.WRITE, "create_buf");
+        queue(buf("a.txt", 1), EditorScheduler.Priority.PATCH, "patch to the new buf");
+        context.runWrites();
+        assertEquals(Arrays.asList("create_buf", "patch to the new buf"), ran);
+    }
+
+    @Test
+    public void testHeldLaneWaitsForResume() {
+        final TextBuf a = buf("a.txt", 1);
+        final int[] tries = {0};
+        scheduler.queue(a, EditorScheduler.Priority.PATCH, new RunLater<Buf>() {
+            @Override
+            public void run(Buf arg) {
+                if (++tries[0] == 1) {
+                    scheduler.retryWhenResumed();
+                    return;
+                }
+                ran.add("a patch");
+            }
+        });
+        queue(a, EditorScheduler.Priority.PATCH, "a later patch");
+        queue(buf("b.txt", 2), EditorScheduler.Priority.WRITE, "b write");
+        context.runWrites();
+        assertEquals("Other buffers go on, and no slice waits on the held lane.", Arrays.asList("b write"), ran);
+        queue(a, EditorScheduler.Priority.HIGHLIGHT, "a highlight");
+        context.runWrites();
+        assertEquals(Arrays.asList("b write"), ran);
+
+        scheduler.resume(a);
+        context.runWrites();
+        assertEquals(Arrays.asList("b write", "a patch", "a later patch", "a highlight"), ran);
+        assertEquals(2, tries[0]);
+    }
+
+    @Test
+    public void testSchedulesOneSliceAtATime() {
+        for (int i = 0; i < 100; i++) {
+            queue(buf("file" + i, i), EditorScheduler.Priority.WRITE, "write " + i);
+        }
+        assertEquals(1, context.writes.size());
+        context.runWrites();
+        assertEquals(100, ran.size());
+        assertEquals(0, scheduler.getStats().getBacklog());
+        assertEquals(100, scheduler.getStats().getMaxBacklog());
+        queue(buf("late", 100), EditorScheduler.Priority.WRITE, "late");
+        assertEquals(1, context.writes.size());
+    }
+
+    @Test
+    public void testYieldsAfterSlice() {
+        EditorScheduler.sliceMillis = 5;
+        for (int i = 0; i < 20; i++) {
+            scheduler.queue(buf("file" + i, i), EditorScheduler.Priority.WRITE, new RunLater<Buf>() {
+                @Override
+                public void run(Buf buf) {
+                    long end = System.nanoTime() + 2000000;
+                    while (System.nanoTime() < end) {
+                        Thread.yield();
+                    }
+                    ran.add(buf.path);
+                }
+            });
+        }
+        context.writes.poll().run();
+        assertTrue("A slice should stop once it is over budget.", ran.size() < 20);
+        assertEquals("The next slice should be queued.", 1, context.writes.size());
+        context.runWrites();
+        assertEquals(20, ran.size());
+        assertTrue(scheduler.getStats().slices.get() > 1);
+    }
+
+    private RunLater<Buf> record(final String name) {
+        return new RunLater<Buf>() {
+            @Override
+            public void run(Buf arg) {
+                ran.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testGetBufDropsQueuedPatches() {
+        TextBuf a = buf("a.txt", 1);
+        TextBuf b = buf("b.txt", 2);
+        queue(a, EditorScheduler.Priority.PATCH, "a patch");
+        scheduler.queueGetBuf(a, record("a old get_buf"));
+        queue(a, EditorScheduler.Priority.HIGHLIGHT, "a highlight");
+        queue(b, EditorScheduler.Priority.PATCH, "b patch");
+        scheduler.queueGetBuf(a, record("a get_buf"));
+        queue(a, EditorScheduler.Priority.PATCH, "a later patch");
+        context.runWrites();
+        assertEquals(4, ran.size());
+        assertTrue(ran.indexOf("a highlight") < ran.indexOf("a get_buf"));
+        assertTrue(ran.indexOf("a get_buf") < ran.indexOf("a later patch"));
+        assertTrue(ran.contains("b patch"));
+        assertEquals(2, scheduler.getStats().superseded.get());
+        assertEquals(0, scheduler.getStats().getBacklog());
+    }
+
+    @Test
+    public void testHighlightReplacesUsersPending() {
+        TextBuf a = buf("a.txt", 1);
+        TextBuf b = buf("b.txt", 2);
+        scheduler.queueHighlight(a, 1, record("user 1 in a"));
+        scheduler.queueHighlight(a, 2, record("user 2 in a"));
+        scheduler.queueHighlight(b, 1, record("user 1 in b"));
+        scheduler.queueHighlight(a, null, record("summon in a"));
+        scheduler.queueHighlight(a, null, record("summon again in a"));
+        context.runWrites();
+        assertEquals(4, ran.size());
+        assertFalse(ran.contains("user 1 in a"));
+        assertTrue(ran.indexOf("user 2 in a") < ran.indexOf("summon in a"));
+        assertTrue(ran.indexOf("summon in a") < ran.indexOf("summon again in a"));
+        assertTrue(ran.contains("user 1 in b"));
+        ran.clear();
+        scheduler.queueHighlight(a, 1, record("user 1 later"));
+        context.runWrites();
+        assertEquals(Arrays.asList("user 1 later"), ran);
+    }
+
+    @Test
+    public void testWakesForWorkQueuedDuringSlice() {
+        final TextBuf a = buf("a.txt", 1);
+        scheduler.queue(a, EditorScheduler.Priority.WRITE, new RunLater<Buf>() {
+            @Override
+            public void run(Buf arg) {
+                ran.add("first");
+                // As if from a network thread, after the slice took the inbox.
+                queue(a, EditorScheduler.Priority.WRITE, "queued while running");
+            }
+        });
+        context.runWrites();
+        assertEquals(Arrays.asList("first", "queued while running"), ran);
+    }
+
+    /**
+     * Queues a million actions from Netty event loops, the way inbound messages are. Set floobits.schedulerStressActions
+     * to change how many.
+     */
+    @Test
+    public void testLosesNothingUnderContention() throws InterruptedException {
+        final ThreadedContext threaded = new ThreadedContext();
+        final EditorScheduler editor = threaded.editor;
+        final int threads = 8;
+        final int batch = 1000;
+        final int perThread = Math.max(batch, Integer.getInteger("floobits.schedulerStressActions", 1000000) / threads);
+        final long total = (long) threads * perThread;
+        final AtomicLong done = new AtomicLong();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(1);
+        NioEventLoopGroup group = new NioEventLoopGroup(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                final TextBuf buf = new TextBuf("file" + t, t, "", null, threaded, null);
+                final EventLoop loop = group.next();
+                loop.execute(new Runnable() {
+                    // Only touched by the actions, which all run on the UI thread.
+                    int last = -1;
+                    // Only touched on this loop's thread.
+                    int queued;
+
+                    @Override
+                    public void run() {
+                        for (int end = Math.min(queued + batch, perThread); queued < end; queued++) {
+                            final int n = queued;
+                            editor.queue(buf, EditorScheduler.Priority.PATCH, new RunLater<Buf>() {
+                                @Override
+                                public void run(Buf arg) {
+                                    if (n != last + 1) {
+                                        outOfOrder.incrementAndGet();
+                                    }
+                                    last = n;
+                                    if (done.incrementAndGet() == total) {
+                                        finished.countDown();
+                                    }
+                                }
+                            });
+                        }
+                        if (queued == perThread) {
+                            return;
+                        }
+                        // Pause now and then, so slices run out of work while actions are still coming in.
+                        if (queued % (5 * batch) == 0) {
+                            loop.schedule(this, 200, TimeUnit.MICROSECONDS);
+                        } else {
+                            loop.execute(this);
+                        }
+                    }
+                });
+            }
+            assertTrue("Ran " + done.get() + " actions", finished.await(30, TimeUnit.SECONDS));
+        } finally {
+            group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+            threaded.ui.shutdown();
+        }
+        assertEquals(0, outOfOrder.get());
+        assertEquals("The slice should never be scheduled twice.", 0, threaded.scheduledTwice.get());
+        assertTrue(threaded.ui.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, threaded.waiting.get());
+    }
+
+    @Test
+    public void testResetDropsQueuedWork() {
+        queue(buf("a.txt", 1), EditorScheduler.Priority.WRITE, "write");
+        scheduler.reset();
+        context.runWrites();
+        assertTrue(ran.isEmpty());
+        queue(buf("a.txt", 1), EditorScheduler.Priority.WRITE, "after reset");
+        context.runWrites();
+        assertEquals(Arrays.asList("after reset"), ran);
+    }
+}
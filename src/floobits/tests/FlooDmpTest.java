@@ -0,0 +1,361 @@
+package floobits.tests;
+
+import floobits.common.dmp.Bitap;
+import floobits.common.dmp.FlooDmp;
+import floobits.common.dmp.FlooPatchPosition;
+import floobits.common.dmp.diff_match_patch;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FlooDmpTest {
+    private static final String ALPHABET = "abcdefgh \n{}();éü中";
+
+    private final FlooDmp dmp = new FlooDmp();
+    private final diff_match_patch upstream = new diff_match_patch();
+    private final LegacyFlooDmp legacy = new LegacyFlooDmp();
+
+    private static String randomText(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    private static String mutate(Random random, String text, int edits, int maxEdit) {
+        StringBuilder sb = new StringBuilder(text);
+        for (int i = 0; i < edits; i++) {
+            int start = random.nextInt(sb.length() + 1);
+            int end = Math.min(sb.length(), start + random.nextInt(maxEdit + 1));
+            sb.replace(start, end, randomText(random, random.nextInt(maxEdit + 1)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The text and results have to be what upstream diff_match_patch gives, the positions what the implementation
+     * before FlooDmp used a StringBuilder gave, fuzzy matches included. When every patch matched exactly the positions
+     * also have to take the original text to the same place.
+     */
+    private void assertSameApply(String message, LinkedList<diff_match_patch.Patch> patches, String text) {
+        Object[] expected = upstream.patch_apply(patches, text);
+        Object[] actual = dmp.patch_apply(patches, text);
+        assertEquals(message, expected[0], actual[0]);
+        assertArrayEquals(message, (boolean[]) expected[1], (boolean[]) actual[1]);
+        Object[] old = legacy.patch_apply(patches, text);
+        FlooPatchPosition[] oldPositions = old.length < 3 ? new FlooPatchPosition[0] : (FlooPatchPosition[]) old[2];
+        FlooPatchPosition[] positions = (FlooPatchPosition[]) actual[2];
+        assertEquals(message, oldPositions.length, positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            assertEquals(message, oldPositions[i].start, positions[i].start);
+            assertEquals(message, oldPositions[i].end, positions[i].end);
+            assertEquals(message, oldPositions[i].text, positions[i].text);
+        }
+        if (actual.length < 4 || !(Boolean) actual[3]) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(text);
+        for (FlooPatchPosition position : (FlooPatchPosition[]) actual[2]) {
+            int start = Math.max(0, position.start);
+            int end = Math.min(Math.max(start + position.end, start), sb.length());
+            sb.replace(start, end, position.text);
+        }
+        assertEquals(message, actual[0], sb.toString());
+    }
+
+    @Test
+    public void testPatchApplyReportsFuzzyMatches() {
+        LinkedList<diff_match_patch.Patch> patches = dmp.patch_make("hello world\n", "hello there world\n");
+        Object[] exact = dmp.patch_apply(patches, "hello world\n");
+        assertEquals("hello there world\n", exact[0]);
+        assertTrue((Boolean) exact[3]);
+        Object[] fuzzy = dmp.patch_apply(patches, "jello world\n");
+        assertEquals("jello there world\n", fuzzy[0]);
+        assertFalse((Boolean) fuzzy[3]);
+    }
+
+    @Test
+    public void testPatchApplyMatchesUpstreamOnExactText() {
+        Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            String before = randomText(random, random.nextInt(2000));
+            String after = mutate(random, before, 1 + random.nextInt(10), 20);
+            LinkedList<diff_match_patch.Patch> patches = dmp.patch_make(before, after);
+            assertSameApply("case " + i, patches, before);
+            assertEquals("case " + i, after, dmp.patch_apply(patches, before)[0]);
+        }
+    }
+
+    @Test
+    public void testPatchApplyMatchesUpstreamOnDriftedText() {
+        Random random = new Random(2);
+        for (int i = 0; i < 300; i++) {
+            String before = randomText(random, random.nextInt(2000));
+            String after = mutate(random, before, 1 + random.nextInt(10), 20);
+            // Someone else edited the text meanwhile, so matches are fuzzy and some patches fail.
+            String drifted = mutate(random, before, 1 + random.nextInt(20), 10);
+            assertSameApply("case " + i, dmp.patch_make(before, after), drifted);
+        }
+    }
+
+    @Test
+    public void testPatchApplyMatchesUpstreamOnLargeDeletes() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            String before = randomText(random, 500 + random.nextInt(2000));
+            int start = random.nextInt(before.length() - 200);
+            String after = before.substring(0, start) + before.substring(start + 100 + random.nextInt(100));
+            LinkedList<diff_match_patch.Patch> patches = dmp.patch_make(before, after);
+            assertSameApply("case " + i, patches, before);
+            assertSameApply("case " + i, patches, mutate(random, before, 5, 3));
+        }
+    }
+
+    @Test
+    public void testPatchApplyMatchesUpstreamAtEdges() {
+        assertSameApply("empty patch", new LinkedList<diff_match_patch.Patch>(), "text");
+        assertSameApply("empty text", dmp.patch_make("", "new text"), "");
+        assertSameApply("delete all", dmp.patch_make("old text", ""), "old text");
+        assertSameApply("prepend", dmp.patch_make("text", "more text"), "text");
+        assertSameApply("append", dmp.patch_make("text", "text and more"), "text");
+    }
+
+    private static String fuzzyPattern(Random random, String text, int length) {
+        int start = random.nextInt(Math.max(1, text.length() - length));
+        String pattern = text.substring(start, Math.min(text.length(), start + length));
+        if (random.nextBoolean()) {
+            pattern = mutate(random, pattern, 1 + random.nextInt(3), 2);
+        }
+        return pattern.length() == 0 ? "a" : pattern;
+    }
+
+    @Test
+    public void testBitapMatchesIntBitap() {
+        Random random = new Random(4);
+        for (int i = 0; i < 2000; i++) {
+            String text = randomText(random, random.nextInt(3000));
+            String pattern = fuzzyPattern(random, text, 1 + random.nextInt(30));
+            if (pattern.length() > 32) {
+                continue;
+            }
+            int loc = random.nextInt(text.length() + 1);
+            assertEquals("case " + i, IntBitap.match(text, pattern, loc, dmp.Match_Threshold, dmp.Match_Distance),
+                    Bitap.match(text, pattern, loc, dmp.Match_Threshold, dmp.Match_Distance));
+        }
+    }
+
+    @Test
+    public void testMultiWordBitapMatchesSingleWord() {
+        Random random = new Random(5);
+        for (int i = 0; i < 2000; i++) {
+            String text = randomText(random, random.nextInt(3000));
+            String pattern = fuzzyPattern(random, text, 1 + random.nextInt(64));
+            if (pattern.length() > 64) {
+                continue;
+            }
+            int loc = random.nextInt(text.length() + 1);
+            assertEquals("case " + i, Bitap.match(text, pattern, loc, dmp.Match_Threshold, dmp.Match_Distance),
+                    Bitap.matchMulti(text, pattern, loc, dmp.Match_Threshold, dmp.Match_Distance));
+        }
+    }
+
+    @Test
+    public void testMultiWordBitapFindsLongPatterns() {
+        Random random = new Random(6);
+        for (int i = 0; i < 200; i++) {
+            String text = randomText(random, 500 + random.nextInt(3000));
+            int start = random.nextInt(text.length() - 300);
+            String pattern = text.substring(start, start + 65 + random.nextInt(200));
+            String drifted = mutate(random, text, 3, 2);
+            int found = Bitap.match(drifted, mutate(random, pattern, 2, 1), start, dmp.Match_Threshold,
+                    dmp.Match_Distance);
+            assertTrue("case " + i, found != -1 && Math.abs(found - start) <= 20);
+        }
+    }
+
+    @Test
+    public void testPatchMakeMatchesDiffMatchPatch() {
+        diff_match_patch reference = new diff_match_patch();
+        Random random = new Random(8);
+        for (int i = 0; i < 1000; i++) {
+            String before = randomText(random, random.nextInt(500));
+            String after = mutate(random, before, 1 + random.nextInt(10), 10);
+            LinkedList<diff_match_patch.Diff> diffs = reference.diff_main(before, after);
+            assertEquals("case " + i, reference.patch_toText(reference.patch_make(before, diffs)),
+                    dmp.patch_toText(dmp.patch_make(before, diffs)));
+        }
+    }
+
+    /**
+     * randomText, but with astral chars too, and never half of one.
+     */
+    private static String randomCodePoints(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(8) == 0) {
+                sb.append(random.nextBoolean() ? "😀" : "😁");
+            } else {
+                sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int codePointBoundary(String text, int index) {
+        return index > 0 && index < text.length() && Character.isLowSurrogate(text.charAt(index)) ? index - 1 : index;
+    }
+
+    @Test
+    public void testPatchMakeFromFragmentsRoundTrips() {
+        Random random = new Random(12);
+        for (int i = 0; i < 20000; i++) {
+            String before = randomCodePoints(random, random.nextInt(300));
+            if (i % 10 == 0) {
+                // Copies of the context further away than patch_make looks.
+                StringBuilder sb = new StringBuilder();
+                for (int copy = 0; copy < 30; copy++) {
+                    sb.append(before);
+                }
+                before = sb.toString();
+            }
+            int offset = codePointBoundary(before, random.nextInt(before.length() + 1));
+            int end = codePointBoundary(before, Math.min(before.length(), offset + random.nextInt(20)));
+            String oldFragment = before.substring(offset, end);
+            String newFragment = randomCodePoints(random, random.nextInt(20));
+            if (random.nextBoolean()) {
+                // Editors often report more than what changed, e.g. the whole line.
+                int keep = codePointBoundary(oldFragment, random.nextInt(oldFragment.length() + 1));
+                newFragment = oldFragment.substring(0, keep) + newFragment + oldFragment.substring(keep);
+            }
+            String after = before.substring(0, offset) + newFragment + before.substring(end);
+            String text = dmp.patch_toText(dmp.patch_make(before, offset, oldFragment, newFragment));
+            Object[] applied = dmp.patch_apply((LinkedList<diff_match_patch.Patch>) dmp.patch_fromText(text), before);
+            assertEquals("case " + i, after, applied[0]);
+            for (boolean result : (boolean[]) applied[1]) {
+                assertTrue("case " + i, result);
+            }
+        }
+    }
+
+    private static String randomLines(Random random, int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append(randomText(random, random.nextInt(8)).replace("\n", "")).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testDiffLinesRoundTrips() {
+        Random random = new Random(7);
+        for (int i = 0; i < 300; i++) {
+            String before = randomLines(random, random.nextInt(200));
+            if (random.nextBoolean()) {
+                before += randomText(random, 5);
+            }
+            String after = mutate(random, before, random.nextInt(10), 30);
+            LinkedList<diff_match_patch.Diff> diffs = dmp.diff_lines(before, after);
+            assertEquals("case " + i, before, dmp.diff_text1(diffs));
+            assertEquals("case " + i, after, dmp.diff_text2(diffs));
+            assertEquals("case " + i, after, dmp.patch_apply(dmp.patch_make_lines(before, after), before)[0]);
+        }
+    }
+
+    @Test
+    public void testDiffLinesPastCharLimit() {
+        // More distinct lines than diff_linesToChars has chars for.
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            sb.append("line ").append(i).append('\n');
+        }
+        String before = sb.toString();
+        String after = before.replace("line 100\n", "line one hundred\n").replace("line 69000\n", "");
+        LinkedList<diff_match_patch.Diff> diffs = dmp.diff_lines(before, after);
+        assertEquals(after, dmp.diff_text2(diffs));
+        assertTrue(dmp.diff_levenshtein(diffs) < 30);
+    }
+
+    @Test
+    public void testDiffPatienceRoundTrips() {
+        Random random = new Random(9);
+        for (int i = 0; i < 100; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int line = random.nextInt(3000); line > 0; line--) {
+                // Mostly unique lines, with some repeats that can't be anchors.
+                sb.append(random.nextInt(10) == 0 ? "}" : "line " + random.nextInt(100000)).append('\n');
+            }
+            String before = sb.toString();
+            String after = mutate(random, before, random.nextInt(50), 40);
+            LinkedList<diff_match_patch.Diff> diffs = dmp.diff_patience(before, after);
+            assertEquals("case " + i, before, dmp.diff_text1(diffs));
+            assertEquals("case " + i, after, dmp.diff_text2(diffs));
+            assertEquals("case " + i, after, dmp.patch_apply(dmp.patch_make_patience(before, after), before)[0]);
+        }
+    }
+
+    private static final String ESCAPED = "%+ @-\n\r\t#&=?/~!*'()\u0000\u007fÿ€😀\ud83d";
+
+    private static String randomPatchText(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            String from = random.nextBoolean() ? ALPHABET : ESCAPED;
+            sb.append(from.charAt(random.nextInt(from.length())));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testPatchTextMatchesDiffMatchPatch() {
+        diff_match_patch reference = new diff_match_patch();
+        Random random = new Random(10);
+        for (int i = 0; i < 1000; i++) {
+            String before = randomPatchText(random, random.nextInt(300));
+            String after = mutate(random, before, 1 + random.nextInt(10), 10);
+            LinkedList<diff_match_patch.Patch> patches = reference.patch_make(before, after);
+            String text = reference.patch_toText(patches);
+            assertEquals("case " + i, text, dmp.patch_toText(patches));
+            assertEquals("case " + i, text, dmp.patch_toText(dmp.patch_fromText(text)));
+            assertEquals("case " + i, reference.patch_toText(reference.patch_fromText(text + "\n\n")),
+                    dmp.patch_toText(dmp.patch_fromText(text + "\n\n")));
+        }
+    }
+
+    private static String patchFromTextError(diff_match_patch dmp, String text) {
+        try {
+            return dmp.patch_toText(dmp.patch_fromText(text));
+        } catch (IllegalArgumentException e) {
+            return "IllegalArgumentException";
+        }
+    }
+
+    @Test
+    public void testPatchFromTextRejectsWhatDiffMatchPatchRejects() {
+        diff_match_patch reference = new diff_match_patch();
+        String[] texts = {
+                "", "\n", "@@ -1 +1 @@\n", "@@ -1 +1 @@\r\n", "@@ -1,3 +1,0 @@\n-abc\n", "@@ -1 +1 @@\n*x\n",
+                "@@ -a +1 @@\n", "@@ -1 +1 @@ \n", "-abc\n", "@@ -1 +1 @@\n+%\n", "@@ -1 +1 @@\n+%4\n",
+                "@@ -1 +1 @@\n+%zz\n", "@@ -1 +1 @@\n+%-0\n", "@@ -1 +1 @@\n+%-1\n", "@@ -1 +1 @@\n+%C3%A9+%20\n",
+                "@@ -1 +1 @@\n+%C3\n", "@@ -1 +1 @@\n\n+a\n\n@@ -3,2 +3 @@\n b\n",
+        };
+        for (String text : texts) {
+            assertEquals(text, patchFromTextError(reference, text), patchFromTextError(dmp, text));
+        }
+        Random random = new Random(11);
+        for (int i = 0; i < 2000; i++) {
+            String before = randomPatchText(random, random.nextInt(100));
+            String text = reference.patch_toText(reference.patch_make(before, mutate(random, before, 2, 5)));
+            // Mangle the text the way a bad or truncated message would.
+            StringBuilder sb = new StringBuilder(text);
+            for (int edit = random.nextInt(3); edit >= 0 && sb.length() > 0; edit--) {
+                int at = random.nextInt(sb.length());
+                sb.replace(at, Math.min(sb.length(), at + random.nextInt(3)), randomPatchText(random, random.nextInt(3)));
+            }
+            String mangled = sb.toString();
+            assertEquals("case " + i, patchFromTextError(reference, mangled), patchFromTextError(dmp, mangled));
+        }
+    }
+}
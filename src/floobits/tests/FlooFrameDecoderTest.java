@@ -0,0 +1,128 @@
+package floobits.tests;
+
+import com.google.gson.JsonObject;
+import floobits.common.protocol.FlooPatch;
+import floobits.common.protocol.codec.FlooFrame;
+import floobits.common.protocol.codec.FlooFrameDecoder;
+import floobits.common.protocol.json.receive.GetBufResponse;
+import io.fletty.buffer.Unpooled;
+import io.fletty.channel.embedded.EmbeddedChannel;
+import io.fletty.handler.codec.TooLongFrameException;
+import io.fletty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FlooFrameDecoderTest {
+    private static final String TEXT = "def f():\n    return \"é中😀\"\\n\n";
+
+    private static String getBuf(int id) {
+        JsonObject json = new JsonObject();
+        json.addProperty("name", "get_buf");
+        json.addProperty("id", id);
+        json.addProperty("path", "a.py");
+        json.addProperty("buf", TEXT);
+        json.addProperty("encoding", "utf8");
+        return json.toString();
+    }
+
+    private static String patch(int id) {
+        // The name doesn't have to come first.
+        return "{\"id\":" + id + ",\"patch\":\"@@ -1 +1 @@\",\"extra\":{\"name\":\"nested\"},\"name\":\"patch\"}";
+    }
+
+    private static String highlight(int id) {
+        return "{\"name\":\"highlight\",\"id\":" + id + ",\"ranges\":[[1,2]]}";
+    }
+
+    private static List<FlooFrame> readAll(EmbeddedChannel channel) {
+        List<FlooFrame> frames = new ArrayList<FlooFrame>();
+        for (Object frame = channel.readInbound(); frame != null; frame = channel.readInbound()) {
+            frames.add((FlooFrame) frame);
+        }
+        return frames;
+    }
+
+    @Test
+    public void testDecodesFramesSplitAnywhere() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            sb.append(getBuf(i)).append('\n').append(patch(i)).append('\n').append(highlight(i)).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(CharsetUtil.UTF_8);
+        Random random = new Random(1);
+        for (int run = 0; run < 200; run++) {
+            EmbeddedChannel channel = new EmbeddedChannel(new FlooFrameDecoder(10000));
+            // Reads split lines, and multi byte chars, at random.
+            for (int at = 0; at < bytes.length; ) {
+                int length = Math.min(bytes.length - at, 1 + random.nextInt(run % 2 == 0 ? 8 : 400));
+                channel.writeInbound(Unpooled.copiedBuffer(bytes, at, length));
+                at += length;
+            }
+            List<FlooFrame> frames = readAll(channel);
+            assertEquals("run " + run, 90, frames.size());
+            for (int i = 0; i < 30; i++) {
+                FlooFrame frame = frames.get(3 * i);
+                assertEquals("get_buf", frame.name);
+                GetBufResponse buf = (GetBufResponse) frame.body;
+                assertEquals(Integer.valueOf(i), buf.id);
+                assertEquals(TEXT, buf.buf);
+
+                frame = frames.get(3 * i + 1);
+                assertEquals("patch", frame.name);
+                assertEquals(Integer.valueOf(i), ((FlooPatch) frame.body).id);
+
+                frame = frames.get(3 * i + 2);
+                assertEquals("highlight", frame.name);
+                assertFalse(frame.isTyped());
+                assertEquals(i, frame.json.get("id").getAsInt());
+            }
+            assertFalse(channel.finish());
+        }
+    }
+
+    @Test
+    public void testSkipsEmptyAndNamelessLines() {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlooFrameDecoder(10000));
+        String lines = "\n\n{\"id\":1}\n{\"name\":2}\n" + highlight(3) + "\n";
+        channel.writeInbound(Unpooled.copiedBuffer(lines, CharsetUtil.UTF_8));
+        List<FlooFrame> frames = readAll(channel);
+        assertEquals(1, frames.size());
+        assertEquals(3, frames.get(0).json.get("id").getAsInt());
+    }
+
+    private static boolean writeTooLong(EmbeddedChannel channel, String text) {
+        try {
+            channel.writeInbound(Unpooled.copiedBuffer(text, CharsetUtil.UTF_8));
+        } catch (TooLongFrameException e) {
+            return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void testDropsTooLongLinesAndCarriesOn() {
+        EmbeddedChannel channel = new EmbeddedChannel(new FlooFrameDecoder(100));
+        StringBuilder tooLong = new StringBuilder(highlight(1));
+        while (tooLong.length() <= 100) {
+            tooLong.insert(1, "\"pad\":\"padding\",");
+        }
+        // All in one read.
+        assertTrue(writeTooLong(channel, tooLong + "\n" + highlight(2) + "\n"));
+        assertEquals(2, readAll(channel).get(0).json.get("id").getAsInt());
+
+        // Over several reads, failing only once the line ends.
+        assertFalse(writeTooLong(channel, tooLong.substring(0, 60)));
+        assertFalse(writeTooLong(channel, tooLong.substring(60)));
+        assertFalse(writeTooLong(channel, tooLong.toString()));
+        assertTrue(writeTooLong(channel, "\n" + highlight(3) + "\n"));
+        List<FlooFrame> frames = readAll(channel);
+        assertEquals(1, frames.size());
+        assertEquals(3, frames.get(0).json.get("id").getAsInt());
+        assertFalse(channel.finish());
+    }
+}
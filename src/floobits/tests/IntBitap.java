@@ -0,0 +1,94 @@
+package floobits.tests;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test oracle for Bitap: diff_match_patch.match_bitap as it was with int masks, so only good for patterns up to 32
+ * chars, with its boxed alphabet. Bitap has to find exactly the same location. Also the BitapBenchmark baseline.
+ */
+public class IntBitap {
+
+    public static int match(String text, String pattern, int loc, float threshold, int distance) {
+        Map<Character, Integer> s = new HashMap<Character, Integer>();
+        for (int i = 0; i < pattern.length(); i++) {
+            Integer mask = s.get(pattern.charAt(i));
+            s.put(pattern.charAt(i), (mask == null ? 0 : mask) | (1 << (pattern.length() - i - 1)));
+        }
+
+        double score_threshold = threshold;
+        int best_loc = text.indexOf(pattern, loc);
+        if (best_loc != -1) {
+            score_threshold = Math.min(score(0, best_loc, loc, pattern, distance), score_threshold);
+            best_loc = text.lastIndexOf(pattern, loc + pattern.length());
+            if (best_loc != -1) {
+                score_threshold = Math.min(score(0, best_loc, loc, pattern, distance), score_threshold);
+            }
+        }
+
+        int matchmask = 1 << (pattern.length() - 1);
+        best_loc = -1;
+
+        int bin_min, bin_mid;
+        int bin_max = pattern.length() + text.length();
+        int[] last_rd = new int[0];
+        for (int d = 0; d < pattern.length(); d++) {
+            bin_min = 0;
+            bin_mid = bin_max;
+            while (bin_min < bin_mid) {
+                if (score(d, loc + bin_mid, loc, pattern, distance) <= score_threshold) {
+                    bin_min = bin_mid;
+                } else {
+                    bin_max = bin_mid;
+                }
+                bin_mid = (bin_max - bin_min) / 2 + bin_min;
+            }
+            bin_max = bin_mid;
+            int start = Math.max(1, loc - bin_mid + 1);
+            int finish = Math.min(loc + bin_mid, text.length()) + pattern.length();
+
+            int[] rd = new int[finish + 2];
+            rd[finish + 1] = (1 << d) - 1;
+            for (int j = finish; j >= start; j--) {
+                int charMatch;
+                if (text.length() <= j - 1 || !s.containsKey(text.charAt(j - 1))) {
+                    charMatch = 0;
+                } else {
+                    charMatch = s.get(text.charAt(j - 1));
+                }
+                if (d == 0) {
+                    rd[j] = ((rd[j + 1] << 1) | 1) & charMatch;
+                } else {
+                    rd[j] = (((rd[j + 1] << 1) | 1) & charMatch)
+                            | (((last_rd[j + 1] | last_rd[j]) << 1) | 1) | last_rd[j + 1];
+                }
+                if ((rd[j] & matchmask) != 0) {
+                    double score = score(d, j - 1, loc, pattern, distance);
+                    if (score <= score_threshold) {
+                        score_threshold = score;
+                        best_loc = j - 1;
+                        if (best_loc > loc) {
+                            start = Math.max(1, 2 * loc - best_loc);
+                        } else {
+                            break;
+                        }
+                    }
+                }
+            }
+            if (score(d + 1, loc, loc, pattern, distance) > score_threshold) {
+                break;
+            }
+            last_rd = rd;
+        }
+        return best_loc;
+    }
+
+    private static double score(int e, int x, int loc, String pattern, int distance) {
+        float accuracy = (float) e / pattern.length();
+        int proximity = Math.abs(loc - x);
+        if (distance == 0) {
+            return proximity == 0 ? accuracy : 1.0;
+        }
+        return accuracy + (proximity / (float) distance);
+    }
+}
@@ -0,0 +1,256 @@
+package floobits.tests;
+
+import floobits.common.EditorEventHandler;
+import floobits.common.RunLater;
+import floobits.common.interfaces.IContext;
+import floobits.common.interfaces.IDoc;
+import floobits.common.interfaces.IFactory;
+import floobits.common.interfaces.IFile;
+import floobits.common.protocol.FlooUser;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A context with no editor or UI behind it, holding one document. Threads run what they're given right away and
+ * there is no event loop, so setTimeout returns null.
+ */
+public class MockContext extends IContext implements IFactory {
+    public final MockIFile file;
+    public final MockDoc doc;
+
+    public MockContext(String colabDir, String path, String text) {
+        this.colabDir = colabDir;
+        iFactory = this;
+        file = new MockIFile(absPath(path)) {
+            @Override
+            public boolean exists() {
+                return true;
+            }
+        };
+        doc = new MockDoc(file, text);
+    }
+
+    @Override
+    public IFile findFileByIoFile(File file) {
+        return findFileByPath(file.getPath());
+    }
+
+    @Override
+    public IFile createFile(String path) {
+        return findFileByPath(path);
+    }
+
+    @Override
+    public IDoc getDocument(IFile file) {
+        return file == this.file ? doc : null;
+    }
+
+    @Override
+    public IDoc getDocument(String relPath) {
+        return getDocument(findFileByPath(absPath(relPath)));
+    }
+
+    @Override
+    public IFile createDirectories(String path) {
+        return null;
+    }
+
+    @Override
+    public IFile findFileByPath(String path) {
+        return file.getPath().equals(path) ? file : null;
+    }
+
+    @Override
+    public IFile getOrCreateFile(String path) {
+        return findFileByPath(path);
+    }
+
+    @Override
+    public void removeHighlightsForUser(int userID) {
+    }
+
+    @Override
+    public void removeHighlight(Integer userId, String path) {
+    }
+
+    @Override
+    public boolean openFile(File file) {
+        return false;
+    }
+
+    @Override
+    public void clearHighlights() {
+    }
+
+    @Override
+    public void clearReadOnlyState() {
+    }
+
+    @Override
+    public void goToLastHighlight() {
+    }
+
+    @Override
+    public Collection<String> getFocusedPaths() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    protected void shareProjectDialog(String name, List<String> orgs, String host, boolean _private_,
+                                      String projectPath) {
+    }
+
+    @Override
+    protected String selectAccount(String[] keys) {
+        return null;
+    }
+
+    @Override
+    public Object getActualContext() {
+        return null;
+    }
+
+    @Override
+    public void loadFloobitsWindow() {
+    }
+
+    @Override
+    public void flashMessage(String message) {
+    }
+
+    @Override
+    public void warnMessage(String message) {
+    }
+
+    @Override
+    public void statusMessage(String message) {
+    }
+
+    @Override
+    public void errorMessage(String message) {
+    }
+
+    @Override
+    public boolean confirmDialog(String message) {
+        return false;
+    }
+
+    @Override
+    public void chatStatusMessage(String message) {
+    }
+
+    @Override
+    public void chatErrorMessage(String message) {
+    }
+
+    @Override
+    public void chat(String username, String msg, Date messageDate) {
+    }
+
+    @Override
+    public void setupFloobitsWindow() {
+    }
+
+    @Override
+    public void openFloobitsWindow() {
+    }
+
+    @Override
+    public void closeFloobitsWindow() {
+    }
+
+    @Override
+    public void toggleFloobitsWindow() {
+    }
+
+    @Override
+    public void listenToEditor(EditorEventHandler editorEventHandler) {
+    }
+
+    @Override
+    public void setListener(boolean b) {
+    }
+
+    @Override
+    public void suppressListener(String absPath) {
+    }
+
+    @Override
+    public void resumeListener(String absPath) {
+    }
+
+    @Override
+    public void setSaving(boolean b) {
+    }
+
+    @Override
+    public void mainThread(Runnable runnable) {
+        runnable.run();
+    }
+
+    @Override
+    public void readThread(Runnable runnable) {
+        runnable.run();
+    }
+
+    @Override
+    public void writeThread(Runnable runnable) {
+        runnable.run();
+    }
+
+    @Override
+    public void dialog(String title, String body, RunLater<Boolean> runLater) {
+    }
+
+    @Override
+    public void dialogDisconnect(int tooMuch, int howMany) {
+    }
+
+    @Override
+    public void dialogPermsRequest(String username, RunLater<String> perms) {
+    }
+
+    @Override
+    public boolean dialogTooBig(HashMap<String, Integer> bigStuff) {
+        return false;
+    }
+
+    @Override
+    public void dialogResolveConflicts(Runnable stompLocal, Runnable stompRemote, boolean readOnly, Runnable flee,
+                                       String[] conflictedPathsArray, String[] connections) {
+    }
+
+    @Override
+    public boolean isAccountAutoGenerated() {
+        return false;
+    }
+
+    @Override
+    public void notifyCompleteSignUp() {
+    }
+
+    @Override
+    public void addUser(FlooUser user) {
+    }
+
+    @Override
+    public void removeUser(FlooUser user) {
+    }
+
+    @Override
+    public void followUser() {
+    }
+
+    @Override
+    public void updateFollowing() {
+    }
+
+    @Override
+    public void connected() {
+    }
+}
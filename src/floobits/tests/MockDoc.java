@@ -0,0 +1,80 @@
+package floobits.tests;
+
+import floobits.common.Constants;
+import floobits.common.HighlightContext;
+import floobits.common.dmp.FlooPatchPosition;
+import floobits.common.interfaces.IDoc;
+import floobits.common.interfaces.IFile;
+
+/**
+ * An in-memory document that applies patch positions the way DocImpl does.
+ */
+public class MockDoc extends IDoc {
+    private final IFile file;
+    private final StringBuilder text;
+    private long stamp;
+
+    public MockDoc(IFile file, String text) {
+        this.file = file;
+        this.text = new StringBuilder(text);
+    }
+
+    @Override
+    public void removeHighlight(Integer userId, String path) {
+    }
+
+    @Override
+    public void applyHighlight(HighlightContext highlight) {
+    }
+
+    @Override
+    public void save() {
+    }
+
+    @Override
+    public String getText() {
+        return text.toString();
+    }
+
+    @Override
+    public int getTextLength() {
+        return text.length();
+    }
+
+    @Override
+    public void setText(String text) {
+        this.text.setLength(0);
+        this.text.append(text);
+        stamp++;
+    }
+
+    @Override
+    public long getModificationStamp() {
+        return stamp;
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) {
+    }
+
+    @Override
+    public boolean makeWritable() {
+        return true;
+    }
+
+    @Override
+    public IFile getVirtualFile() {
+        return file;
+    }
+
+    @Override
+    public boolean patch(FlooPatchPosition[] positions) {
+        for (FlooPatchPosition position : positions) {
+            int start = Math.max(0, position.start);
+            int end = Math.min(Math.max(start + position.end, start), text.length());
+            text.replace(start, end, Constants.NEW_LINE.matcher(position.text).replaceAll("\n"));
+            stamp++;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,168 @@
+package floobits.tests;
+
+import com.google.gson.JsonObject;
+import floobits.common.protocol.Connection;
+import floobits.common.protocol.FlooPatch;
+import floobits.common.protocol.buf.TextBuf;
+import floobits.common.protocol.handlers.BaseHandler;
+import floobits.common.protocol.json.receive.FlooHighlight;
+import floobits.common.protocol.json.receive.SaveBuf;
+import floobits.common.protocol.json.receive.SetBuf;
+import floobits.common.protocol.json.send.Ping;
+import io.fletty.channel.ChannelOutboundHandlerAdapter;
+import io.fletty.channel.embedded.EmbeddedChannel;
+import io.fletty.handler.timeout.IdleStateEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OutboundSchedulerTest {
+    // Lanes in the order they drain.
+    private static final int PATCH = 0;
+    private static final int CONTROL = 1;
+    private static final int HIGHLIGHT = 2;
+    private static final int BULK = 3;
+
+    private MockContext context;
+    private EmbeddedChannel channel;
+    private Connection connection;
+
+    @Before
+    public void setUp() {
+        context = new MockContext("/floobits/test", "a.txt", "text");
+        channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter());
+        connection = new Connection(new BaseHandler(context) {
+            @Override
+            protected void _on_data(String name, JsonObject obj) {
+            }
+
+            @Override
+            public void on_connect() {
+            }
+        }) {
+            {
+                channel = OutboundSchedulerTest.this.channel;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        Connection.heartbeatInterval = 15;
+    }
+
+    private Serializable message(int type, int id) {
+        switch (type) {
+            case PATCH:
+                FlooPatch patch = new FlooPatch();
+                patch.id = id;
+                return patch;
+            case CONTROL:
+                return id == 0 ? new Ping() : new SaveBuf(id);
+            case HIGHLIGHT:
+                return new FlooHighlight(id, new ArrayList<ArrayList<Integer>>(), false, false, null);
+            default:
+                return new SetBuf(new TextBuf("a.txt", id, "text", null, context, null));
+        }
+    }
+
+    private List<Object> drain() {
+        channel.runPendingTasks();
+        List<Object> written = new ArrayList<Object>();
+        for (Object obj = channel.readOutbound(); obj != null; obj = channel.readOutbound()) {
+            written.add(obj);
+        }
+        return written;
+    }
+
+    @Test
+    public void testWritesByLaneAndBufferOrder() {
+        Serializable upload = message(BULK, 1);
+        Serializable patchAfterUpload = message(PATCH, 1);
+        Serializable highlight = message(HIGHLIGHT, 2);
+        Serializable save = message(CONTROL, 2);
+        Serializable patch = message(PATCH, 2);
+        for (Serializable obj : Arrays.asList(upload, patchAfterUpload, highlight, save, patch)) {
+            connection.write(obj);
+        }
+        assertEquals(Arrays.<Object>asList(patch, save, highlight, upload, patchAfterUpload), drain());
+        assertEquals(0, connection.getScheduler().backlog());
+
+        // Once the upload is out, the buffer's patches go first again.
+        Serializable laterUpload = message(BULK, 2);
+        Serializable laterPatch = message(PATCH, 1);
+        connection.write(laterUpload);
+        connection.write(laterPatch);
+        assertEquals(Arrays.<Object>asList(laterPatch, laterUpload), drain());
+    }
+
+    @Test
+    public void testRandomWritesKeepTheirOrder() {
+        Random random = new Random(1);
+        for (int run = 0; run < 500; run++) {
+            // Keyed by identity, highlights with the same ranges are equal.
+            IdentityHashMap<Object, Integer> order = new IdentityHashMap<Object, Integer>();
+            IdentityHashMap<Object, Integer> lanes = new IdentityHashMap<Object, Integer>();
+            HashSet<Integer> uploading = new HashSet<Integer>();
+            for (int i = random.nextInt(40); i >= 0; i--) {
+                int type = random.nextInt(4);
+                int id = type == CONTROL ? random.nextInt(4) : 1 + random.nextInt(3);
+                Serializable obj = message(type, id);
+                order.put(obj, order.size());
+                // Anything for a buffer with an upload queued waits behind it.
+                lanes.put(obj, uploading.contains(id) ? BULK : type);
+                if (type == BULK) {
+                    uploading.add(id);
+                }
+                connection.write(obj);
+            }
+            List<Object> written = drain();
+            assertEquals("run " + run, order.size(), written.size());
+            IdentityHashMap<Object, Object> seen = new IdentityHashMap<Object, Object>();
+            for (Object obj : written) {
+                assertTrue("run " + run, order.containsKey(obj) && seen.put(obj, obj) == null);
+            }
+            for (int i = 0; i < written.size(); i++) {
+                for (int j = i + 1; j < written.size(); j++) {
+                    Object a = written.get(i);
+                    Object b = written.get(j);
+                    int laneA = lanes.get(a);
+                    int laneB = lanes.get(b);
+                    assertTrue("run " + run + ": lanes drain in order", laneA <= laneB);
+                    if (laneA == laneB) {
+                        assertTrue("run " + run + ": writes keep their order",
+                                order.get(a) < order.get(b));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIdleTimeoutWaitsForThePingToGoOut() {
+        // No grace period once the ping is out, so the next idle event after it closes the channel.
+        Connection.heartbeatInterval = 0;
+        channel.pipeline().addLast(connection);
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+        assertTrue(channel.isOpen());
+        assertEquals(0, connection.getConnectionStats().idleTimeouts.get());
+
+        List<Object> written = drain();
+        assertEquals(1, written.size());
+        assertTrue(written.get(0) instanceof Ping);
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+        assertFalse(channel.isOpen());
+        assertEquals(1, connection.getConnectionStats().idleTimeouts.get());
+    }
+}
@@ -0,0 +1,159 @@
+package floobits.tests;
+
+import floobits.common.Hashing;
+import floobits.common.PatchJournal;
+import floobits.common.dmp.FlooDmp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PatchJournalTest {
+    private static final String[] TEXTS = {"a", "ab", "abc", "abcd", "abcde", "abcdef"};
+
+    private final FlooDmp dmp = new FlooDmp();
+
+    private PatchJournal journal;
+
+    @Before
+    public void setUp() {
+        journal = new PatchJournal();
+    }
+
+    @After
+    public void tearDown() {
+        PatchJournal.maxPerBuf = 200;
+        PatchJournal.maxCharsPerBuf = 4 * 1024 * 1024;
+    }
+
+    private static String md5(int text) {
+        return Hashing.md5Hex(TEXTS[text]);
+    }
+
+    /**
+     * Sends TEXTS[0] -> TEXTS[1] ... -> TEXTS[patches] for bufId, as req_ids firstReqId, firstReqId + 1 ...
+     */
+    private void send(int bufId, int firstReqId, int patches) {
+        for (int i = 0; i < patches; i++) {
+            record(firstReqId + i, bufId, TEXTS[i], TEXTS[i + 1]);
+        }
+    }
+
+    private void record(int reqId, int bufId, String before, String after) {
+        journal.record(reqId, bufId, Hashing.md5Hex(before), Hashing.md5Hex(after), after,
+                dmp.patch_toText(dmp.patch_make(before, after)));
+    }
+
+    @Test
+    public void testFindsAnyTextSent() {
+        send(1, 1, 3);
+        for (int i = 0; i <= 3; i++) {
+            assertEquals(TEXTS[i], journal.find(1, md5(i)));
+        }
+        assertNull(journal.find(1, md5(4)));
+        assertNull(journal.find(1, null));
+        assertNull(journal.find(2, md5(1)));
+        assertEquals(3, journal.size());
+    }
+
+    @Test
+    public void testAckCoversEarlierPatchesForTheBuf() {
+        send(1, 1, 4);
+        send(2, 10, 2);
+        journal.ack(3);
+        assertEquals(3, journal.size());
+        assertNull(journal.find(1, md5(2)));
+        assertEquals(TEXTS[3], journal.find(1, md5(3)));
+        assertEquals(TEXTS[4], journal.find(1, md5(4)));
+        assertEquals(TEXTS[0], journal.find(2, md5(0)));
+
+        // Already covered, or never sent.
+        journal.ack(2);
+        journal.ack(99);
+        assertEquals(3, journal.size());
+
+        journal.ack(4);
+        journal.ack(11);
+        assertEquals(0, journal.size());
+        assertNull(journal.find(1, md5(4)));
+        assertNull(journal.find(2, md5(2)));
+    }
+
+    @Test
+    public void testForgetsOldestPastLimit() {
+        PatchJournal.maxPerBuf = 3;
+        send(1, 1, 5);
+        assertEquals(3, journal.size());
+        assertNull(journal.find(1, md5(1)));
+        assertEquals(TEXTS[2], journal.find(1, md5(2)));
+        journal.ack(1);
+        assertEquals(3, journal.size());
+        journal.ack(5);
+        assertEquals(0, journal.size());
+    }
+
+    @Test
+    public void testOfflineEditsKeepTheFirstBase() {
+        journal.recordOffline(1, md5(0), TEXTS[0]);
+        journal.recordOffline(1, md5(1), TEXTS[1]);
+        assertEquals(TEXTS[0], journal.find(1, md5(0)));
+        assertNull(journal.find(1, md5(1)));
+        assertEquals(0, journal.size());
+
+        journal.forget(1);
+        assertNull(journal.find(1, md5(0)));
+        journal.recordOffline(1, md5(1), TEXTS[1]);
+        assertEquals(TEXTS[1], journal.find(1, md5(1)));
+    }
+
+    @Test
+    public void testForgetAndClear() {
+        send(1, 1, 2);
+        send(2, 10, 2);
+        journal.recordOffline(3, md5(0), TEXTS[0]);
+        journal.forget(1);
+        assertEquals(2, journal.size());
+        assertNull(journal.find(1, md5(1)));
+        assertEquals(TEXTS[1], journal.find(2, md5(1)));
+        journal.clear();
+        assertEquals(0, journal.size());
+        assertNull(journal.find(2, md5(1)));
+        assertNull(journal.find(3, md5(0)));
+    }
+
+    @Test
+    public void testRebuildsTextsAcrossOtherPatches() {
+        String[] texts = new String[10];
+        StringBuilder sb = new StringBuilder();
+        for (int line = 0; line < 100; line++) {
+            sb.append("line ").append(line).append('\n');
+        }
+        texts[0] = sb.toString();
+        for (int i = 1; i < texts.length; i++) {
+            int at = (i * 37) % texts[i - 1].length();
+            texts[i] = texts[i - 1].substring(0, at) + "edit " + i + texts[i - 1].substring(at + 3);
+        }
+        record(1, 1, texts[0], texts[1]);
+        record(2, 1, texts[1], texts[2]);
+        record(3, 1, texts[2], texts[3]);
+        // texts[3] -> texts[4] came from someone else.
+        record(4, 1, texts[4], texts[5]);
+        record(5, 1, texts[5], texts[6]);
+        for (int i = 0; i <= 6; i++) {
+            assertEquals(texts[i], journal.find(1, Hashing.md5Hex(texts[i])));
+        }
+        assertNull(journal.find(1, Hashing.md5Hex(texts[7])));
+    }
+
+    @Test
+    public void testForgetsOldestPastCharLimit() {
+        send(1, 1, 5);
+        PatchJournal.maxCharsPerBuf = 1;
+        send(2, 10, 3);
+        assertEquals(6, journal.size());
+        assertNull(journal.find(2, md5(1)));
+        assertEquals(TEXTS[2], journal.find(2, md5(2)));
+        assertEquals(TEXTS[3], journal.find(2, md5(3)));
+    }
+}
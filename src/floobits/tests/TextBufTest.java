@@ -0,0 +1,322 @@
+package floobits.tests;
+
+import floobits.common.EditorScheduler;
+import floobits.common.Hashing;
+import floobits.common.OutboundRequestHandler;
+import floobits.common.RunLater;
+import floobits.common.dmp.FlooDmp;
+import floobits.common.protocol.FlooPatch;
+import floobits.common.protocol.buf.Buf;
+import floobits.common.protocol.buf.TextBuf;
+import io.fletty.channel.nio.NioEventLoopGroup;
+import io.fletty.util.concurrent.ScheduledFuture;
+import floobits.common.dmp.diff_match_patch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TextBufTest {
+    private static final String BEFORE = "hello world\n";
+    private static final String AFTER = "hello there world\n";
+
+    /**
+     * Holds on to what would run in the write action until the test runs it, and never fires timeouts, so held back
+     * changes only go out when the test flushes them.
+     */
+    private static class Context extends MockContext {
+        final ArrayDeque<Runnable> writes = new ArrayDeque<Runnable>();
+        final NioEventLoopGroup timers = new NioEventLoopGroup(1);
+
+        Context() {
+            super("/floobits/test", "a.txt", BEFORE);
+        }
+
+        @Override
+        public void writeThread(Runnable runnable) {
+            writes.add(runnable);
+        }
+
+        @Override
+        public ScheduledFuture setTimeout(int time, Runnable runnable) {
+            return timers.schedule(runnable, 1, TimeUnit.HOURS);
+        }
+
+        void runWrites() {
+            while (!writes.isEmpty()) {
+                writes.poll().run();
+            }
+        }
+    }
+
+    private static class Sent {
+        final String patch;
+        final String after;
+        final int events;
+
+        Sent(String patch, String after, int events) {
+            this.patch = patch;
+            this.after = after;
+            this.events = events;
+        }
+    }
+
+    private static class Outbound extends OutboundRequestHandler {
+        final List<Sent> patches = new ArrayList<Sent>();
+        int getBufs;
+
+        Outbound() {
+            super(null, null, null);
+        }
+
+        @Override
+        public void patch(String textPatch, String before_md5, String after_md5, String after, TextBuf b, int events) {
+            synchronized (patches) {
+                patches.add(new Sent(textPatch, after, events));
+            }
+        }
+
+        @Override
+        public void getBuf(Integer buf_id) {
+            getBufs++;
+        }
+    }
+
+    private Context context;
+    private Outbound outbound;
+    private TextBuf buf;
+
+    @Before
+    public void setUp() {
+        context = new Context();
+        outbound = new Outbound();
+        buf = new TextBuf("a.txt", 1, BEFORE, Hashing.md5Hex(BEFORE), context, outbound);
+    }
+
+    @After
+    public void tearDown() {
+        context.timers.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+
+    private static FlooPatch remotePatch(String before, String after) {
+        FlooDmp dmp = new FlooDmp();
+        FlooPatch patch = new FlooPatch();
+        patch.path = "a.txt";
+        patch.id = 1;
+        patch.patch = dmp.patch_toText(dmp.patch_make(before, after));
+        patch.md5_before = Hashing.md5Hex(before);
+        patch.md5_after = Hashing.md5Hex(after);
+        return patch;
+    }
+
+    private static void awaitHashing() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        Hashing.submit(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Keeps the hashing thread busy until the returned latch is counted down.
+     */
+    private static CountDownLatch blockHashing() {
+        final CountDownLatch release = new CountDownLatch(1);
+        Hashing.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        return release;
+    }
+
+    private List<String> queueHighlight() {
+        final List<String> seen = new ArrayList<String>();
+        context.editor.queue(buf, EditorScheduler.Priority.HIGHLIGHT, new RunLater<Buf>() {
+            @Override
+            public void run(Buf arg) {
+                seen.add(context.doc.getText());
+            }
+        });
+        return seen;
+    }
+
+    private void testRunsBeforeLaterWork(boolean prepared) throws InterruptedException {
+        CountDownLatch release = prepared ? null : blockHashing();
+        buf.queuePatch(remotePatch(BEFORE, AFTER), context.editor);
+        List<String> seen = queueHighlight();
+        if (prepared) {
+            awaitHashing();
+        } else {
+            context.runWrites();
+            assertEquals("The patch should wait for phase one.", BEFORE, context.doc.getText());
+            assertTrue("Nothing after the patch should run before it.", seen.isEmpty());
+            release.countDown();
+            awaitHashing();
+        }
+        context.runWrites();
+        assertEquals(AFTER, context.doc.getText());
+        assertEquals(AFTER, buf.buf);
+        assertEquals("A highlight after the patch should see it.", AFTER, seen.get(0));
+    }
+
+    @Test
+    public void testRemotePatchRunsBeforeLaterWork() throws InterruptedException {
+        testRunsBeforeLaterWork(true);
+    }
+
+    @Test
+    public void testUnpreparedRemotePatchRunsBeforeLaterWork() throws InterruptedException {
+        testRunsBeforeLaterWork(false);
+    }
+
+    @Test
+    public void testAppliesPatchesPreparedOnEachOther() throws InterruptedException {
+        String last = AFTER + "and more\n";
+        buf.queuePatch(remotePatch(BEFORE, AFTER), context.editor);
+        buf.queuePatch(remotePatch(AFTER, last), context.editor);
+        awaitHashing();
+        context.runWrites();
+        assertEquals(last, context.doc.getText());
+        assertEquals(last, buf.buf);
+        assertTrue(outbound.patches.isEmpty());
+    }
+
+    @Test
+    public void testSameLengthChangeIsNotPatchedBlindly() throws InterruptedException {
+        buf.queuePatch(remotePatch(BEFORE, AFTER), context.editor);
+        awaitHashing();
+        // Changed behind the buffer's back, without changing the length.
+        String changed = "jello world\n";
+        context.doc.setText(changed);
+        context.runWrites();
+        awaitHashing();
+        assertEquals("The document's text should go out as a force patch.", 1, outbound.patches.size());
+        assertEquals(changed, outbound.patches.get(0).after);
+        assertTrue(context.doc.getText().contains("jello"));
+        assertTrue(context.doc.getText().contains("there"));
+        assertEquals(context.doc.getText(), buf.buf);
+    }
+
+    @Test
+    public void testCoalescedChangesMakeOnePatch() throws InterruptedException {
+        FlooDmp dmp = new FlooDmp();
+        Random random = new Random(1);
+        String text = BEFORE;
+        for (int i = 0; i < 2000; i++) {
+            String before = text;
+            int edits = 1 + random.nextInt(10);
+            for (int edit = 0; edit < edits; edit++) {
+                int offset = random.nextInt(text.length() + 1);
+                String oldFragment = text.substring(offset, Math.min(text.length(), offset + random.nextInt(8)));
+                String newFragment = BEFORE.substring(random.nextInt(BEFORE.length()));
+                newFragment = newFragment.substring(0, random.nextInt(newFragment.length() + 1));
+                text = text.substring(0, offset) + newFragment + text.substring(offset + oldFragment.length());
+                assertTrue("case " + i, buf.send_patch(offset, oldFragment, newFragment, text.length()));
+            }
+            buf.flush();
+            awaitHashing();
+            if (outbound.patches.isEmpty()) {
+                // The edits cancelled out.
+                continue;
+            }
+            assertEquals("case " + i, 1, outbound.patches.size());
+            Sent sent = outbound.patches.remove(0);
+            assertEquals("case " + i, edits, sent.events);
+            assertEquals("case " + i, text, sent.after);
+            Object[] applied = dmp.patch_apply((LinkedList<diff_match_patch.Patch>) dmp.patch_fromText(sent.patch),
+                    before);
+            assertEquals("case " + i, text, applied[0]);
+            assertTrue("case " + i, (Boolean) applied[3]);
+        }
+    }
+
+    @Test
+    public void testPreparesAgainWhenBufMoved() throws InterruptedException {
+        buf.queuePatch(remotePatch(BEFORE, AFTER), context.editor);
+        List<String> seen = queueHighlight();
+        awaitHashing();
+        // Typed after phase one, so the prepared patch is for text buf no longer holds.
+        String typed = BEFORE + "typed\n";
+        context.doc.setText(typed);
+        assertTrue(buf.send_patch(BEFORE.length(), "", "typed\n", typed.length()));
+        CountDownLatch release = blockHashing();
+        context.runWrites();
+        assertEquals(typed, context.doc.getText());
+        assertTrue(seen.isEmpty());
+        release.countDown();
+        awaitHashing();
+        context.runWrites();
+        String expected = AFTER + "typed\n";
+        assertEquals(expected, context.doc.getText());
+        assertEquals(expected, buf.buf);
+        assertEquals(expected, seen.get(0));
+    }
+
+    @Test
+    public void testKeepsPreparingAfterBadPatch() throws InterruptedException {
+        FlooPatch bad = remotePatch(BEFORE, AFTER);
+        bad.patch = "@@ garbage";
+        buf.queuePatch(bad, context.editor);
+        awaitHashing();
+        context.runWrites();
+        assertEquals(1, outbound.getBufs);
+        assertEquals(BEFORE, context.doc.getText());
+
+        buf.queuePatch(remotePatch(BEFORE, AFTER), context.editor);
+        awaitHashing();
+        context.runWrites();
+        assertEquals(AFTER, context.doc.getText());
+    }
+
+    @Test
+    public void testHoldsChangesWithoutCopyingTheText() throws InterruptedException {
+        String before = buf.buf;
+        assertTrue(buf.send_patch(0, "h", "j", BEFORE.length()));
+        assertTrue(buf.send_patch(6, "", "big ", BEFORE.length() + 4));
+        assertSame(before, buf.buf);
+        buf.flush();
+        String expected = "jello big world\n";
+        assertEquals(expected, buf.buf);
+        awaitHashing();
+        assertEquals(1, outbound.patches.size());
+        assertEquals(expected, outbound.patches.get(0).after);
+    }
+
+    @Test
+    public void testFlushesBeforeRegionOutgrowsLimit() throws InterruptedException {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 3 * TextBuf.coalesceMaxChars) {
+            sb.append(BEFORE);
+        }
+        String text = sb.toString();
+        buf.set(text, Hashing.md5Hex(text));
+        assertTrue(buf.send_patch(0, "h", "j", text.length()));
+        // Too far from the first change to hold both in one region.
+        assertTrue(buf.send_patch(text.length() - 1, "\n", "!", text.length()));
+        awaitHashing();
+        assertEquals(1, outbound.patches.size());
+        buf.flush();
+        awaitHashing();
+        assertEquals(2, outbound.patches.size());
+        String expected = "j" + text.substring(1, text.length() - 1) + "!";
+        assertEquals(expected, buf.buf);
+        assertEquals(expected, outbound.patches.get(1).after);
+    }
+}
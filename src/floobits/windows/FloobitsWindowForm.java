@@ -7,6 +7,7 @@ import com.intellij.ui.JBColor;
 import com.intellij.ui.components.JBScrollPane;
 import floobits.actions.*;
 import floobits.common.interfaces.IContext;
+import floobits.common.protocol.ConnectionStats;
 import floobits.common.protocol.FlooUser;
 import floobits.common.protocol.handlers.FlooHandler;
 import floobits.impl.ContextImpl;
@@ -115,6 +116,7 @@ public class FloobitsWindowForm {
         String summonLabel = "Summon everyone in workspace to current cursor location";
         String followLabel = "Follow all changes in workspace";
         String unFollowLabel = "Stop following changes";
+        String connectionLabel = "Show connection latency";
         String helpLabel = "Get help with using Floobits";
         ActionGroup group = new DefaultActionGroup(
                 new AnAction(connectLabel, connectLabel, AllIcons.Actions.Execute) {
@@ -213,6 +215,28 @@ public class FloobitsWindowForm {
                         e.getPresentation().setEnabled(flooHandler != null && flooHandler.state.getFollowing());
                     }
                 },
+                new AnAction(connectionLabel, connectionLabel, AllIcons.General.Information) {
+                    @Override
+                    public void actionPerformed(AnActionEvent e) {
+                        if (context == null) {
+                            return;
+                        }
+                        FlooHandler handler = context.getFlooHandler();
+                        ConnectionStats stats = handler == null ? null : handler.getConnectionStats();
+                        if (stats == null) {
+                            return;
+                        }
+                        statusMessage(String.format("%s. %s.", stats.rttString(), stats));
+                    }
+                    @Override
+                    public void update(AnActionEvent e) {
+                        if (context == null) {
+                            return;
+                        }
+                        FlooHandler flooHandler = context.getFlooHandler();
+                        e.getPresentation().setEnabled(flooHandler != null);
+                    }
+                },
                 new AnAction(openBrowserLabel, openBrowserLabel, AllIcons.Actions.Nextfile) {
                     @Override
                     public void actionPerformed(AnActionEvent e) {